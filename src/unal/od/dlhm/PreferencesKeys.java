@@ -60,6 +60,20 @@ public interface PreferencesKeys {
     final static String REC_COSINE_BORDER_WIDTH = "REC_COSINE_BORDER_WIDTH";
     final static String REC_CONTRAST_TYPE = "REC_CONTRAST_TYPE";
     final static String REC_AVERAGE_DIMENSION = "REC_AVERAGE_DIMENSION";
+
+    //performance
+    final static String REC_PAD_FACTOR = "REC_PAD_FACTOR";
+    final static String REC_LARGE_FIELD = "REC_LARGE_FIELD";
+    final static String REC_OUT_OF_CORE = "REC_OUT_OF_CORE";
+    final static String REC_BATCH_MEMORY = "REC_BATCH_MEMORY";
+    final static String REC_BATCH_ON_DISK = "REC_BATCH_ON_DISK";
+    final static String REC_BATCH_LAZY = "REC_BATCH_LAZY";
+    final static String REC_FOCUS_METRIC = "REC_FOCUS_METRIC";
+    final static String REC_BATCH_DEPTH_MAP = "REC_BATCH_DEPTH_MAP";
+    final static String REC_DEPTH_TILE = "REC_DEPTH_TILE";
+    final static String REC_BATCH_PROJECTIONS = "REC_BATCH_PROJECTIONS";
+    final static String REC_ROI_ENABLED = "REC_ROI_ENABLED";
+    final static String REC_ROI_ZOOM = "REC_ROI_ZOOM";
     
     //log scaling
     final static String REC_PHASE_8_BIT = "REC_PHASE_8_BIT";
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds the reconstruction distance that optimizes a {@link FocusMetric} of
+ * the amplitude. A coarse scan of {@link #COARSE_PLANES} planes brackets the
+ * focus, and a golden-section search narrows the bracket down to the
+ * tolerance, so the focus is found with a few tens of reconstructions instead
+ * of a full sweep.
+ * <p>
+ * The planes are reconstructed with the geometric output size, so the object
+ * keeps its size in pixels over the search. With a fixed output size the
+ * object shrinks towards the source, and the metrics follow the size instead
+ * of the focus. The metric of each distance is only computed once.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class Autofocus {
+
+    /**
+     * Planes of the coarse scan.
+     */
+    public static final int COARSE_PLANES = 9;
+
+    private static final float GOLDEN = (float) ((Math.sqrt(5) - 1) / 2);
+
+    //smallest tolerance, in float spacings of the distances
+    private static final int MIN_ULPS = 4;
+
+    private final ComplexField field;
+    private final int M, N;
+    private final float lambda, L, dx, dy;
+    private final FocusMetric metric;
+
+    private float padFactor = PaddingPlanner.DEFAULT_PAD_FACTOR;
+    private Workspace workspace;
+
+    //reconstruction buffers
+    private ComplexField output;
+    private float[] amplitude;
+
+    //metric of each evaluated distance, sorted by distance
+    private final TreeMap<Float, Float> curve;
+
+    /**
+     * Creates the search.
+     *
+     * @param field interpolated hologram field, not modified
+     * @param lambda wavelength
+     * @param L source to screen distance
+     * @param dx input pixel size
+     * @param dy input pixel size
+     * @param metric focus metric
+     */
+    public Autofocus(ComplexField field, float lambda, float L, float dx,
+            float dy, FocusMetric metric) {
+
+        this.field = field;
+        this.M = field.getWidth();
+        this.N = field.getHeight();
+        this.lambda = lambda;
+        this.L = L;
+        this.dx = dx;
+        this.dy = dy;
+        this.metric = metric;
+
+        curve = new TreeMap<Float, Float>();
+    }
+
+    public void setPadFactor(float padFactor) {
+        this.padFactor = padFactor;
+    }
+
+    public void setWorkspace(Workspace workspace) {
+        this.workspace = workspace;
+    }
+
+    /**
+     * Reconstructs the amplitude at a distance and returns its metric.
+     *
+     * @param z reconstruction distance
+     * @return metric
+     */
+    public float evaluate(float z) {
+        Float cached = curve.get(z);
+        if (cached != null) {
+            return cached;
+        }
+
+        //each plane has its own output size, its kernels are not cached but
+        //the FFT plans are shared by all the planes
+        float dxOut = (z == 0) ? dx / L : dx * z / L;
+        float dyOut = (z == 0) ? dy / L : dy * z / L;
+
+        KirchhoffHelmholtz propagator = new KirchhoffHelmholtz(M, N, lambda,
+                z, L, dx, dy, dxOut, dyOut, padFactor);
+
+        if (output == null) {
+            output = new ComplexField(M, N);
+            amplitude = new float[M * N];
+        }
+
+        if (workspace == null) {
+            workspace = new Workspace();
+        }
+
+        output.copyFrom(field);
+        propagator.diffractWithoutOutputPhase(new ComplexField[]{output},
+                workspace);
+
+        OutputExtractor extractor = new OutputExtractor(
+                propagator.getTransferFunction());
+        extractor.extract(output, null, null, amplitude, null, null, null);
+
+        float value = metric.evaluate(amplitude, M, N);
+        curve.put(z, value);
+
+        return value;
+    }
+
+    /**
+     * Searches the focus between two distances.
+     *
+     * @param zStart first distance
+     * @param zEnd last distance
+     * @param tolerance width of the final bracket, raised to a few float
+     * spacings of the distances if smaller
+     * @return distance with the best metric
+     */
+    public float search(float zStart, float zEnd, float tolerance) {
+        if (!(zEnd > zStart)) {
+            throw new IllegalArgumentException("The last distance must be "
+                    + "greater than the first one.");
+        }
+
+        if (!(tolerance > 0)) {
+            throw new IllegalArgumentException("Tolerance must be positive.");
+        }
+
+        //coarse scan
+        float step = (zEnd - zStart) / (COARSE_PLANES - 1);
+
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+
+        for (int p = 0; p < COARSE_PLANES; p++) {
+            float score = evaluate(zStart + p * step);
+
+            if (score > bestScore) {
+                bestScore = score;
+                best = p;
+            }
+        }
+
+        //golden-section search in the bracket of the best coarse plane
+        float a = zStart + Math.max(0, best - 1) * step;
+        float b = zStart + Math.min(COARSE_PLANES - 1, best + 1) * step;
+
+        float c = b - GOLDEN * (b - a);
+        float d = a + GOLDEN * (b - a);
+
+        float scoreC = evaluate(c);
+        float scoreD = evaluate(d);
+
+        //below the float spacing the bracket stops shrinking, so the
+        //tolerance is bounded and the steps are counted up front
+        tolerance = Math.max(tolerance, MIN_ULPS
+                * Math.ulp(Math.max(Math.abs(zStart), Math.abs(zEnd))));
+        int steps = (int) Math.ceil(Math.log(tolerance / (b - a))
+                / Math.log(GOLDEN));
+
+        for (int s = 0; s < steps && b - a > tolerance; s++) {
+            float previousA = a;
+            float previousB = b;
+
+            if (scoreC > scoreD) {
+                b = d;
+                d = c;
+                scoreD = scoreC;
+
+                c = b - GOLDEN * (b - a);
+                scoreC = evaluate(c);
+            } else {
+                a = c;
+                c = d;
+                scoreC = scoreD;
+
+                d = a + GOLDEN * (b - a);
+                scoreD = evaluate(d);
+            }
+
+            if (a == previousA && b == previousB) {
+                break;
+            }
+        }
+
+        return getBest();
+    }
+
+    /**
+     * Returns the evaluated distance with the best metric.
+     *
+     * @return distance, NaN if none was evaluated
+     */
+    public float getBest() {
+        float best = Float.NaN;
+        float bestScore = Float.NEGATIVE_INFINITY;
+
+        for (Map.Entry<Float, Float> entry : curve.entrySet()) {
+            if (entry.getValue() > bestScore) {
+                bestScore = entry.getValue();
+                best = entry.getKey();
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Returns the evaluated distances and their metric, sorted by distance.
+     *
+     * @return {distances, metrics}
+     */
+    public float[][] getCurve() {
+        float[][] result = new float[2][curve.size()];
+
+        int i = 0;
+        for (Map.Entry<Float, Float> entry : curve.entrySet()) {
+            result[0][i] = entry.getKey();
+            result[1][i] = entry.getValue();
+            i++;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the number of reconstructions made.
+     *
+     * @return evaluations
+     */
+    public int getEvaluations() {
+        return curve.size();
+    }
+
+    public FocusMetric getMetric() {
+        return metric;
+    }
+}
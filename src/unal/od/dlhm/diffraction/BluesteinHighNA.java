@@ -16,9 +16,6 @@
 
 package unal.od.dlhm.diffraction;
 
-import org.jtransforms.fft.FloatFFT_2D;
-import unal.od.jdiffraction.cpu.utils.ArrayUtils;
-
 /**
  *
  * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
@@ -27,16 +24,41 @@ import unal.od.jdiffraction.cpu.utils.ArrayUtils;
  */
 public class BluesteinHighNA {
 
-    private final int M, N;
-    private final float z, lambda, dx, dy, dxOut, dyOut;
+    final int M, N, P, Q;
+    final float z, lambda, dx, dy, dxOut, dyOut;
+
+    private final ComplexField kernel1;//, outputPhase; (not important for the intended use of this class)
+    private final float[] kernel2;
+    private final PrunedConvolution convolution;
 
-    private final float[][] kernel1;//, outputPhase; (not important for the intended use of this class)
-    private float[][] kernel2;
-    private final FloatFFT_2D fft;
+    //built on the first call to interpolate
+    private ResamplingOperator resampling;
 
     public BluesteinHighNA(int M, int N, float lambda, float z, float L, float dx,
             float dy, float dxOut, float dyOut) {
 
+        this(M, N, lambda, z, L, dx, dy, dxOut, dyOut,
+                PaddingPlanner.DEFAULT_PAD_FACTOR);
+    }
+
+    /**
+     * Creates a propagator whose convolution is padded according to the pad
+     * factor.
+     *
+     * @param M size of the sample
+     * @param N size of the sample
+     * @param lambda wavelength
+     * @param z source to sample distance
+     * @param L source to screen distance
+     * @param dx sample pixel size
+     * @param dy sample pixel size
+     * @param dxOut screen pixel size
+     * @param dyOut screen pixel size
+     * @param padFactor pad factor, see {@link PaddingPlanner}
+     */
+    public BluesteinHighNA(int M, int N, float lambda, float z, float L,
+            float dx, float dy, float dxOut, float dyOut, float padFactor) {
+
         this.M = M;
         this.N = N;
         this.lambda = lambda;
@@ -46,221 +68,313 @@ public class BluesteinHighNA {
         this.dxOut = dxOut;
         this.dyOut = dyOut;
 
-        kernel1 = new float[M][2 * N];
+        P = PaddingPlanner.paddedSize(M, padFactor);
+        Q = PaddingPlanner.paddedSize(N, padFactor);
+
+        kernel1 = new ComplexField(M, N);
+        //padded to P x Q, stored by padded column
+        kernel2 = new float[2 * P * Q];
 //        outputPhase = new float[M][2 * N]; //(not important for the intended use of this class)
-        fft = new FloatFFT_2D(2 * M, 2 * N);
+        convolution = new PrunedConvolution(M, N, P, Q);
 
         calculateKernels();
 
     }
 
+    /**
+     * Calculates the kernels. Both only depend on m^2 and n^2, so the m, n >= 0
+     * quadrant is calculated and mirrored into the other three. The rows of
+     * that quadrant are split between threads.
+     */
     private void calculateKernels() {
-        float z2 = z * z;
+        final float z2 = z * z;
 
-        int M2 = (M / 2) - 1;
-        int N2 = (N / 2) - 1;
+        final int M2 = (M - 1) / 2;
+        final int N2 = (N - 1) / 2;
 
-        float k2 = (float) Math.PI / lambda;
+        final float k2 = (float) Math.PI / lambda;
 
-        float[][] kernel2 = new float[M][2 * N];
+        //terms that only depend on m, for m >= 0
+        final int mCount = M - M2;
+        final float[] rx = new float[mCount];
 
-        for (int i = 0, m = -M2; i < M; i++, m++) {
+        for (int m = 0; m < mCount; m++) {
+            rx[m] = 1 - (m * m * dxOut * dxOut / z2);
+        }
 
-            float rx = 1 - (m * m * dxOut * dxOut / z2);
+        final float[] kernel = kernel1.getData();
 
-            for (int j = 0, n = -N2; j < N; j++, n++) {
+        ParallelUtils.parallelFor(N - N2, new ParallelUtils.Loop() {
 
-                float r = (float) Math.sqrt(rx - (n * n * dyOut * dyOut / z2));
+            @Override
+            public void run(int start, int end) {
+                //rows and columns of (m, n), (-m, n), (m, -n) and (-m, -n)
+                int[] is = new int[4];
+                int[] js = new int[4];
 
-                float dX = dxOut / r;
-                float dY = dyOut / r;
+                for (int n = start; n < end; n++) {
+                    float ny = n * n * dyOut * dyOut / z2;
 
-                float R = (float) Math.sqrt(z2 + (m * m * dX * dX) + (n * n * dY * dY));
-                float factor = k2 / R;
+                    js[0] = js[1] = N2 + n;
+                    //the last row of even sizes has no mirror
+                    js[2] = js[3] = n <= N2 ? N2 - n : -1;
 
-                float phase1 = factor * ((dx * (dx - dX) * m * m) + (dy * (dy - dY) * n * n));
-                float phase2 = factor * ((dx * dX * m * m) + (dy * dY * n * n));
+                    for (int m = 0; m < mCount; m++) {
 
-                kernel1[i][2 * j] = (float) Math.cos(phase1);
-                kernel1[i][2 * j + 1] = (float) Math.sin(phase1);
+                        float r = (float) Math.sqrt(rx[m] - ny);
 
-                kernel2[i][2 * j] = (float) Math.cos(phase2);
-                kernel2[i][2 * j + 1] = (float) Math.sin(phase2);
+                        float dX = dxOut / r;
+                        float dY = dyOut / r;
 
-                //output plane phase (not important for the intended use of this class)
-//                float factor2 = 1 / (lambda * R);
-//                float phaseOut = 2 * k2 * R - phase2;
-//                outputPhase[i][2 * j] = factor2 * (float) Math.sin(phaseOut);
-//                outputPhase[i][2 * j + 1] = -factor2 * (float) Math.sin(phaseOut);
-            }
-        }
+                        float R = (float) Math.sqrt(z2 + (m * m * dX * dX) + (n * n * dY * dY));
+                        float factor = k2 / R;
 
-        this.kernel2 = padComplexArray(M, N, kernel2, 2);
-        fft.complexForward(this.kernel2);
-    }
+                        float phase1 = factor * ((dx * (dx - dX) * m * m) + (dy * (dy - dY) * n * n));
+                        float phase2 = factor * ((dx * dX * m * m) + (dy * dY * n * n));
 
-    /**
-     * Function to pad complex arrays. The complex array is padded into a matrix
-     * with @code{pad*M x pad*N} elements.
-     *
-     * @param M size of a
-     * @param N size of a
-     * @param a input array
-     * @param pad padding factor
-     * @return padded array
-     */
-    private float[][] padComplexArray(int M, int N, float[][] a, int pad) {
-        if (pad <= 1) {
-            return a;
-        }
+                        float re1 = (float) Math.cos(phase1);
+                        float im1 = (float) Math.sin(phase1);
+                        float re2 = (float) Math.cos(phase2);
+                        float im2 = (float) Math.sin(phase2);
+
+                        is[0] = is[2] = M2 + m;
+                        is[1] = is[3] = m <= M2 ? M2 - m : -1;
+
+                        for (int s = 0; s < 4; s++) {
+                            int i = is[s];
+                            int j = js[s];
+                            if (i < 0 || j < 0) {
+                                continue;
+                            }
 
-        float[][] padded = new float[pad * M][pad * 2 * N];
+                            kernel[2 * (j * M + i)] = re1;
+                            kernel[2 * (j * M + i) + 1] = im1;
 
-        int iStart = (pad - 1) * M / 2;
-        int jStart = (pad - 1) * N / 2;
+                            //padded position
+                            int k = 2 * (i * Q + j);
+                            kernel2[k] = re2;
+                            kernel2[k + 1] = im2;
+                        }
 
-        for (int i = 0, i2 = iStart; i < M; i++, i2++) {
-            for (int j = 0, j2 = jStart; j < N; j++, j2++) {
-                padded[i2][2 * j2] = a[i][2 * j];
-                padded[i2][2 * j2 + 1] = a[i][2 * j + 1];
+                        //output plane phase (not important for the intended use of this class)
+//                        float factor2 = 1 / (lambda * R);
+//                        float phaseOut = 2 * k2 * R - phase2;
+//                        outputPhase[i][2 * j] = factor2 * (float) Math.sin(phaseOut);
+//                        outputPhase[i][2 * j + 1] = -factor2 * (float) Math.sin(phaseOut);
+                    }
+                }
             }
-        }
+        });
 
-        return padded;
+        FftPlanCache.getInstance().getFloatFFT_2D(P, Q).complexForward(kernel2);
+    }
+
+    public void diffract(ComplexField field) {
+        diffract(field, new Workspace());
     }
 
     /**
-     * Extracts a portion of a complex padded array. The extracted complex array
-     * will have @code{Mout x Nout} complex elements.
+     * Propagates the field using the buffers of the workspace. The result is
+     * stored in field.
      *
-     * @param M size of padded
-     * @param N size of padded
-     * @param padded input padded array
-     * @param Mout size of output
-     * @param Nout size of output
-     * @return output matrix
+     * @param field M x N field
+     * @param workspace work buffers
      */
-    private void unpadComplexArray(int M, int N, float[][] padded, int Mout,
-            int Nout, float[][] a) {
-
-        int iStart = (M - Mout) / 2;
-        int jStart = (N - Nout) / 2;
+    public void diffract(ComplexField field, Workspace workspace) {
+        diffract(new ComplexField[]{field}, workspace);
+    }
 
-        for (int i = 0, i2 = iStart; i < Mout; i++, i2++) {
-            for (int j = 0, j2 = jStart; j < Nout; j++, j2++) {
-                a[i][2 * j] = padded[i2][2 * j2];
-                a[i][2 * j + 1] = padded[i2][2 * j2 + 1];
-            }
-        }
+    public void diffract(ComplexField... fields) {
+        diffract(fields, new Workspace());
     }
 
     /**
-     * Extracts a portion of a padded array. The extracted array will have
-     * @code{Mout x Nout} elements.
+     * Propagates several fields at once, for instance a sample and its
+     * reference. Every kernel is read once for all the fields and the FFTs of
+     * all of them run in the same parallel loops. The results are stored in
+     * the fields.
      *
-     * @param M size of padded
-     * @param N size of padded
-     * @param padded input padded array
-     * @param Mout size of output
-     * @param Nout size of output
-     * @return output matrix
+     * @param fields M x N fields
+     * @param workspace work buffers
      */
-    private void unpadArray(int M, int N, float[][] padded, int Mout, int Nout,
-            float[][] a) {
-
-        int iStart = (M - Mout) / 2;
-        int jStart = (N - Nout) / 2;
-
-        for (int i = 0, i2 = iStart; i < Mout; i++, i2++) {
-            for (int j = 0, j2 = jStart; j < Nout; j++, j2++) {
-                a[i][j] = padded[i2][j2];
+    public void diffract(ComplexField[] fields, Workspace workspace) {
+        for (ComplexField field : fields) {
+            if (M != field.getWidth() || N != field.getHeight()) {
+                throw new IllegalArgumentException("Field dimension must be " + M + " x " + N + ".");
             }
         }
-    }
-
-    public void diffract(float[][] field) {
-        if (M != field.length || N != (field[0].length / 2)) {
-            throw new IllegalArgumentException("Array dimension must be " + M + " x " + 2 * N + ".");
-        }
-
-        ArrayUtils.complexMultiplication2(field, kernel1);
-        float[][] paddedField = padComplexArray(M, N, field, 2);
 
-        fft.complexForward(paddedField);
+        ComplexField.multiply(fields, kernel1);
 
-        ArrayUtils.complexMultiplication2(paddedField, kernel2);
-
-        fft.complexInverse(paddedField, true);
-
-        ArrayUtils.complexShift(paddedField);
-
-        unpadComplexArray(2 * M, 2 * N, paddedField, M, N, field);
+        convolution.convolve(fields, kernel2, workspace);
 
         //(not important for the intended use of this class)
 //        ArrayUtils.complexMultiplication2(field, outputPhase);
     }
 
-    public float[][] interpolate(float[][] a) {
-        if (M != a.length || N != (a[0].length)) {
-            throw new IllegalArgumentException("Array dimension must be " + M + " x " + N + ".");
-        }
+    /**
+     * Returns the memory, in bytes, taken by the kernels of this propagator.
+     *
+     * @return kernels size
+     */
+    public long getKernelsSize() {
+        //kernel1 has M x N complex elements, kernel2 is padded to P x Q
+        return 4L * (2L * M * N + 2L * P * Q);
+    }
 
-        float stepM = M / (M - 1.0f);
-        float stepN = N / (N - 1.0f);
+    /**
+     * Interpolates a real valued image of the screen, given in ImageJ pixel
+     * order. The resampling operator is fetched from the
+     * {@link PropagatorCache} on the first call and reused afterwards.
+     *
+     * @param a image with M x N elements
+     * @return interpolated image in ImageJ pixel order
+     */
+    public float[] interpolate(float[] a) {
+        if (a.length != M * N) {
+            throw new IllegalArgumentException("Array length must be " + M * N + ".");
+        }
 
-        int M2 = (M / 2) - 1;
-        int N2 = (N / 2) - 1;
+        if (resampling == null) {
+            resampling = PropagatorCache.getInstance().getResamplingOperator(this);
+        }
 
-        float z2 = z * z;
+        return resampling.apply(a);
+    }
 
-        float r_max = (float) Math.sqrt(1 - (M2 * M2 * dxOut * dxOut / z2) - (N2 * N2 * dyOut * dyOut / z2));
-        float mpMin = -M2 / r_max;
-        float npMin = -N2 / r_max;
+    /**
+     * Builds the sparse operator used by {@link #interpolate(float[])}. Every
+     * screen pixel is spread over the 4 neighbours of its position in a padded
+     * grid, and the centered M x N portion of that grid is the output. The
+     * positions are computed in parallel; the operator rows are then filled
+     * in the screen pixel order, which is the order the contributions would
+     * be added by a scatter.
+     *
+     * @return resampling operator
+     */
+    ResamplingOperator createResampling() {
+        final int M2 = (M - 1) / 2;
+        final int N2 = (N - 1) / 2;
 
-        int mpMax = (int) Math.ceil((M2 + 1) / r_max);
-        int npMax = (int) Math.ceil((N2 + 1) / r_max);
+        final float z2 = z * z;
 
-        float[][] tmp = new float[2 * mpMax][2 * npMax];
+        float r_max = (float) Math.sqrt(1 - (M2 * M2 * dxOut * dxOut / z2) - (N2 * N2 * dyOut * dyOut / z2));
+        final float mpMin = -M2 / r_max;
+        final float npMin = -N2 / r_max;
+
+        final int mpMax = (int) Math.ceil((M2 + 1) / r_max);
+        final int npMax = (int) Math.ceil((N2 + 1) / r_max);
+
+        //centered portion of the padded grid
+        int iStart = (2 * mpMax - M) / 2;
+        int jStart = (2 * npMax - N) / 2;
+
+        //padded grid position and weights of every screen pixel, by rows of
+        //the screen. -1 marks the pixels that fall outside
+        final int[] cells = new int[2 * M * N];
+        final float[] fracs = new float[2 * M * N];
+
+        ParallelUtils.parallelFor(M, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    int m = i - M2;
+                    float rx = 1 - (m * m * dxOut * dxOut / z2);
+
+                    for (int j = 0, n = -N2; j < N; j++, n++) {
+                        float r = (float) Math.sqrt(rx - (n * n * dyOut * dyOut / z2));
+
+                        float mp = m / r - mpMin;
+                        float np = n / r - npMin;
+
+                        int imp = (int) Math.floor(mp);
+                        int inp = (int) Math.floor(np);
+
+                        int s = 2 * (i * N + j);
+                        if (imp > 0 && imp < 2 * mpMax - 1 && inp > 0 && inp < 2 * npMax - 1) {
+                            cells[s] = imp;
+                            cells[s + 1] = inp;
+                            fracs[s] = (imp + 1.0f) - mp;
+                            fracs[s + 1] = (inp + 1.0f) - np;
+                        } else {
+                            cells[s] = -1;
+                        }
+                    }
+                }
+            }
+        });
 
-        for (int i = 0, m = -M2; i < M; i++, m++) {
+        //entries per output pixel
+        int[] rows = new int[M * N + 1];
+        for (int s = 0; s < 2 * M * N; s += 2) {
+            if (cells[s] < 0) {
+                continue;
+            }
 
-            float rx = 1 - (m * m * dxOut * dxOut / z2);
+            for (int c = 0; c < 4; c++) {
+                int o = target(cells[s] + (c & 1) - iStart,
+                        cells[s + 1] + (c >> 1) - jStart);
+                if (o >= 0) {
+                    rows[o + 1]++;
+                }
+            }
+        }
 
-            for (int j = 0, n = -N2; j < N; j++, n++) {
+        for (int o = 0; o < M * N; o++) {
+            rows[o + 1] += rows[o];
+        }
 
-                float r = (float) Math.sqrt(rx - (n * n * dyOut * dyOut / z2));
+        int[] next = new int[M * N];
+        System.arraycopy(rows, 0, next, 0, M * N);
 
-                float mp = m / r - mpMin;// + (1);//
-                float np = n / r - npMin;// + (1);//
+        int[] sources = new int[rows[M * N]];
+        float[] weights = new float[rows[M * N]];
 
-                int imp = (int) Math.floor(mp);//
-                int inp = (int) Math.floor(np);//
+        for (int i = 0, s = 0; i < M; i++) {
+            for (int j = 0; j < N; j++, s += 2) {
+                if (cells[s] < 0) {
+                    continue;
+                }
 
-                //weights
-                float x1frac = (imp + 1.0f) - mp;
+                float x1frac = fracs[s];
                 float x2frac = 1.0f - x1frac;
-                float y1frac = (inp + 1.0f) - np;
+                float y1frac = fracs[s + 1];
                 float y2frac = 1.0f - y1frac;
 
-                //areas
-                float x1y1 = x1frac * y1frac;
-                float x1y2 = x1frac * y2frac;
-                float x2y1 = x2frac * y1frac;
-                float x2y2 = x2frac * y2frac;
-
-                //interpolation
-                if (imp > 0 && imp < 2 * mpMax - 1 && inp > 0 && inp < 2 * npMax - 1) {
-                    tmp[imp][inp] = tmp[imp][inp] + x1y1 * a[i][j];
-                    tmp[imp + 1][inp] = tmp[imp + 1][inp] + x2y1 * a[i][j];
-                    tmp[imp][inp + 1] = tmp[imp][inp + 1] + x1y2 * a[i][j];
-                    tmp[imp + 1][inp + 1] = tmp[imp + 1][inp + 1] + x2y2 * a[i][j];
+                //areas, in the order x1y1, x2y1, x1y2, x2y2
+                float[] areas = {x1frac * y1frac, x2frac * y1frac,
+                    x1frac * y2frac, x2frac * y2frac};
+
+                for (int c = 0; c < 4; c++) {
+                    int o = target(cells[s] + (c & 1) - iStart,
+                            cells[s + 1] + (c >> 1) - jStart);
+                    if (o >= 0) {
+                        int p = next[o]++;
+                        sources[p] = j * M + i;
+                        weights[p] = areas[c];
+                    }
                 }
             }
         }
 
-        float[][] out = new float[M][N];
-        unpadArray(2 * mpMax, 2 * npMax, tmp, M, N, out);
-        return out;
+        return new ResamplingOperator(M * N, rows, sources, weights);
+    }
+
+    /**
+     * Returns the output pixel of a position in the centered portion of the
+     * padded grid, or -1 if the position is outside the output.
+     *
+     * @param i column in the output
+     * @param j row in the output
+     * @return output pixel index
+     */
+    private int target(int i, int j) {
+        if (i < 0 || i >= M || j < 0 || j >= N) {
+            return -1;
+        }
+
+        return j * M + i;
     }
 
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Arrays;
+import org.jtransforms.fft.FloatFFT_1D;
+
+/**
+ * 1D chirp-z transform of n complex samples to w outputs:
+ * <pre>
+ * y(u) = scale * exp(i (r u + s)) * sum_i x(i) exp(i (q m^2 + l m)) exp(-i b m u)
+ * </pre>
+ * with {@code m = i - c}, for u in [0, w). With {@code m u = (m^2 + u^2 - (u - m)^2) / 2} the sum is
+ * a convolution with a chirp, evaluated with FFTs of a smooth length not
+ * smaller than n + w - 1 (Bluestein's algorithm). The phases are calculated
+ * in double precision.
+ * <p>
+ * The sum can be limited to the inputs with {@code u - i} in a window: the
+ * chirp is zero outside of it, which truncates the sum the same way a
+ * convolution with a kernel of limited support does.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+class ChirpZ {
+
+    final int n, w, length;
+
+    //input and output factors, transformed convolution chirp
+    private final float[] pre, post, chirp;
+    private final FloatFFT_1D fft;
+
+    /**
+     * Creates the transform.
+     *
+     * @param n number of inputs
+     * @param c index of the input with m = 0
+     * @param w number of outputs
+     * @param from smallest u - i added to the sum
+     * @param to largest u - i added to the sum
+     * @param q quadratic input phase
+     * @param l linear input phase
+     * @param b phase of the m u product
+     * @param r linear output phase
+     * @param s constant output phase
+     * @param scale output scale
+     */
+    ChirpZ(int n, int c, int w, int from, int to, double q, double l,
+            double b, double r, double s, float scale) {
+        this.n = n;
+        this.w = w;
+
+        length = PaddingPlanner.paddedSize(n + w - 1, 1);
+        fft = FftPlanCache.getInstance().getFloatFFT_1D(length);
+
+        pre = new float[2 * n];
+        for (int i = 0; i < n; i++) {
+            int m = i - c;
+            double phase = (q - b / 2) * m * m + l * m;
+
+            pre[2 * i] = (float) Math.cos(phase);
+            pre[2 * i + 1] = (float) Math.sin(phase);
+        }
+
+        post = new float[2 * w];
+        for (int u = 0; u < w; u++) {
+            double phase = -b / 2 * u * u + r * u + s;
+
+            post[2 * u] = scale * (float) Math.cos(phase);
+            post[2 * u + 1] = scale * (float) Math.sin(phase);
+        }
+
+        //exp(i b (u - m)^2 / 2) with u - m = t + c, t = u - i stored at
+        //t mod length, zero outside the window
+        chirp = new float[2 * length];
+        for (int t = Math.max(from, -(n - 1)); t <= Math.min(to, w - 1); t++) {
+            double d = t + c;
+            double phase = b / 2 * d * d;
+
+            int k = t < 0 ? t + length : t;
+            chirp[2 * k] = (float) Math.cos(phase);
+            chirp[2 * k + 1] = (float) Math.sin(phase);
+        }
+
+        fft.complexForward(chirp);
+    }
+
+    /**
+     * Transforms one line. Input element i is at
+     * {@code inOffset + 2 * i * inStride}, output element u at
+     * {@code outOffset + 2 * u * outStride}.
+     *
+     * @param in input array
+     * @param inOffset first input element
+     * @param inStride input stride, in complex elements
+     * @param out output array
+     * @param outOffset first output element
+     * @param outStride output stride, in complex elements
+     * @param work buffer with 2 * length elements
+     */
+    void transform(float[] in, int inOffset, int inStride, float[] out,
+            int outOffset, int outStride, float[] work) {
+
+        for (int i = 0, k = inOffset; i < n; i++, k += 2 * inStride) {
+            float re = in[k];
+            float im = in[k + 1];
+
+            work[2 * i] = re * pre[2 * i] - im * pre[2 * i + 1];
+            work[2 * i + 1] = re * pre[2 * i + 1] + im * pre[2 * i];
+        }
+        Arrays.fill(work, 2 * n, 2 * length, 0);
+
+        fft.complexForward(work);
+
+        for (int k = 0; k < 2 * length; k += 2) {
+            float re = work[k];
+            float im = work[k + 1];
+
+            work[k] = re * chirp[k] - im * chirp[k + 1];
+            work[k + 1] = re * chirp[k + 1] + im * chirp[k];
+        }
+
+        fft.complexInverse(work, true);
+
+        for (int u = 0, k = outOffset; u < w; u++, k += 2 * outStride) {
+            float re = work[2 * u];
+            float im = work[2 * u + 1];
+
+            out[k] = re * post[2 * u] - im * post[2 * u + 1];
+            out[k + 1] = re * post[2 * u + 1] + im * post[2 * u];
+        }
+    }
+
+    /**
+     * Returns the memory, in bytes, taken by the factors.
+     *
+     * @return size
+     */
+    long getSize() {
+        return 4L * (pre.length + post.length + chirp.length);
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Complex field stored in one contiguous array with interleaved real and
+ * imaginary parts. The samples follow the ImageJ pixel order: the sample at
+ * column i and row j is at {@code 2 * (j * width + i)}, so the real valued
+ * outputs can be used directly as FloatProcessor pixels. The element-wise
+ * operations run in parallel, with the loops of {@link ComplexKernels}.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class ComplexField {
+
+    private static final ComplexKernels KERNELS = ComplexKernels.getInstance();
+
+    private final int width, height;
+    private final float[] data;
+
+    public ComplexField(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        data = new float[2 * width * height];
+    }
+
+    /**
+     * Creates a field backed by the given array.
+     *
+     * @param width field width
+     * @param height field height
+     * @param data interleaved array with 2 * width * height elements
+     */
+    public ComplexField(int width, int height, float[] data) {
+        if (data.length != 2 * width * height) {
+            throw new IllegalArgumentException("Array length must be " + 2 * width * height + ".");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.data = data;
+    }
+
+    /**
+     * Creates a field from a M x 2N complex array, where M is the width.
+     *
+     * @param a complex array
+     * @return field
+     */
+    public static ComplexField fromArray(float[][] a) {
+        int M = a.length;
+        int N = a[0].length / 2;
+
+        ComplexField field = new ComplexField(M, N);
+        float[] data = field.data;
+
+        for (int i = 0; i < M; i++) {
+            for (int j = 0; j < N; j++) {
+                data[2 * (j * M + i)] = a[i][2 * j];
+                data[2 * (j * M + i) + 1] = a[i][2 * j + 1];
+            }
+        }
+
+        return field;
+    }
+
+    /**
+     * Returns the field as a M x 2N complex array, where M is the width.
+     *
+     * @return complex array
+     */
+    public float[][] toArray() {
+        float[][] a = new float[width][2 * height];
+
+        for (int i = 0; i < width; i++) {
+            for (int j = 0; j < height; j++) {
+                a[i][2 * j] = data[2 * (j * width + i)];
+                a[i][2 * j + 1] = data[2 * (j * width + i) + 1];
+            }
+        }
+
+        return a;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the backing array.
+     *
+     * @return interleaved array
+     */
+    public float[] getData() {
+        return data;
+    }
+
+    public ComplexField copy() {
+        return new ComplexField(width, height, data.clone());
+    }
+
+    /**
+     * Copies the samples of b into this field.
+     *
+     * @param b field with the same size
+     */
+    public void copyFrom(ComplexField b) {
+        checkSize(b);
+        System.arraycopy(b.data, 0, data, 0, data.length);
+    }
+
+    /**
+     * Multiplies this field by b, element by element.
+     *
+     * @param b field with the same size
+     */
+    public void multiply(ComplexField b) {
+        checkSize(b);
+        final float[] bData = b.data;
+
+        ParallelUtils.parallelFor(height, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                KERNELS.multiply(data, bData, start * width, end * width);
+            }
+        });
+    }
+
+    /**
+     * Multiplies every field by b, element by element. The fields are
+     * processed row by row, so each row of b is read once for all of them.
+     *
+     * @param fields fields with the same size as b
+     * @param b multiplier
+     */
+    public static void multiply(final ComplexField[] fields, ComplexField b) {
+        for (ComplexField field : fields) {
+            field.checkSize(b);
+        }
+
+        final int width = b.width;
+        final float[] bData = b.data;
+
+        ParallelUtils.parallelFor(b.height, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int j = start; j < end; j++) {
+                    for (ComplexField field : fields) {
+                        KERNELS.multiply(field.data, bData, j * width,
+                                (j + 1) * width);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Multiplies this field by the conjugate of b and divides it by the
+     * squared modulus of b, element by element. This is the quotient of the
+     * two fields.
+     *
+     * @param b field with the same size
+     */
+    public void conjugateDivide(ComplexField b) {
+        checkSize(b);
+        final float[] bData = b.data;
+
+        ParallelUtils.parallelFor(height, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                KERNELS.conjugateDivide(data, bData, start * width,
+                        end * width);
+            }
+        });
+    }
+
+    public float[] modulus() {
+        return modulus(null);
+    }
+
+    /**
+     * Calculates the modulus of the field.
+     *
+     * @param out array with width * height elements, or null to allocate it
+     * @return modulus in ImageJ pixel order
+     */
+    public float[] modulus(float[] out) {
+        return extract(MODULUS, out);
+    }
+
+    public float[] modulusSq() {
+        return modulusSq(null);
+    }
+
+    /**
+     * Calculates the squared modulus of the field.
+     *
+     * @param out array with width * height elements, or null to allocate it
+     * @return squared modulus in ImageJ pixel order
+     */
+    public float[] modulusSq(float[] out) {
+        return extract(MODULUS_SQ, out);
+    }
+
+    public float[] phase() {
+        return phase(null);
+    }
+
+    /**
+     * Calculates the phase of the field.
+     *
+     * @param out array with width * height elements, or null to allocate it
+     * @return phase in ImageJ pixel order
+     */
+    public float[] phase(float[] out) {
+        return extract(PHASE, out);
+    }
+
+    public float[] real() {
+        return real(null);
+    }
+
+    /**
+     * Extracts the real part of the field.
+     *
+     * @param out array with width * height elements, or null to allocate it
+     * @return real part in ImageJ pixel order
+     */
+    public float[] real(float[] out) {
+        return extract(REAL, out);
+    }
+
+    public float[] imaginary() {
+        return imaginary(null);
+    }
+
+    /**
+     * Extracts the imaginary part of the field.
+     *
+     * @param out array with width * height elements, or null to allocate it
+     * @return imaginary part in ImageJ pixel order
+     */
+    public float[] imaginary(float[] out) {
+        return extract(IMAGINARY, out);
+    }
+
+    private static final int MODULUS = 0;
+    private static final int MODULUS_SQ = 1;
+    private static final int PHASE = 2;
+    private static final int REAL = 3;
+    private static final int IMAGINARY = 4;
+
+    private float[] extract(final int type, float[] out) {
+        if (out == null) {
+            out = new float[width * height];
+        } else if (out.length != width * height) {
+            throw new IllegalArgumentException("Array length must be " + width * height + ".");
+        }
+
+        final float[] result = out;
+
+        ParallelUtils.parallelFor(height, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                int kStart = start * width;
+                int kEnd = end * width;
+
+                switch (type) {
+                    case MODULUS:
+                        KERNELS.modulus(data, result, kStart, kEnd);
+                        break;
+                    case MODULUS_SQ:
+                        KERNELS.modulusSq(data, result, kStart, kEnd);
+                        break;
+                    case PHASE:
+                        KERNELS.phase(data, result, kStart, kEnd);
+                        break;
+                    case REAL:
+                        KERNELS.part(data, 0, result, kStart, kEnd);
+                        break;
+                    default:
+                        KERNELS.part(data, 1, result, kStart, kEnd);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    private void checkSize(ComplexField b) {
+        if (b.width != width || b.height != height) {
+            throw new IllegalArgumentException("Field dimension must be " + width + " x " + height + ".");
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Element-wise complex kernels used by {@link ComplexField}. The arrays hold
+ * interleaved real and imaginary parts, and the ranges are given in complex
+ * elements. Two implementations are available, selected with the
+ * {@code dlhm.kernels} system property when the class is loaded:
+ * <ul>
+ * <li>{@code scalar}: straightforward loops, the reference results.</li>
+ * <li>{@code fast} (default): the conjugate division multiplies by one
+ * reciprocal instead of dividing twice, and the phase uses a float arctangent
+ * accurate to a few float ulps instead of the double {@code Math.atan2}.</li>
+ * </ul>
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public abstract class ComplexKernels {
+
+    /**
+     * System property used to select the implementation.
+     */
+    public static final String PROPERTY = "dlhm.kernels";
+
+    private static final ComplexKernels INSTANCE = create(
+            System.getProperty(PROPERTY, "fast"));
+
+    private static ComplexKernels create(String name) {
+        if ("scalar".equalsIgnoreCase(name)) {
+            return new Scalar();
+        }
+
+        return new Fast();
+    }
+
+    /**
+     * Returns the implementation selected for this JVM.
+     *
+     * @return kernels
+     */
+    public static ComplexKernels getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the name of the implementation.
+     *
+     * @return name
+     */
+    public abstract String getName();
+
+    /**
+     * Multiplies a by b in {@code [from, to)}. The result is stored in a.
+     *
+     * @param a first factor
+     * @param b second factor
+     * @param from first element
+     * @param to last element, exclusive
+     */
+    public void multiply(float[] a, float[] b, int from, int to) {
+        for (int k = 2 * from; k < 2 * to; k += 2) {
+            float re = a[k];
+            float im = a[k + 1];
+            float bRe = b[k];
+            float bIm = b[k + 1];
+
+            a[k] = re * bRe - im * bIm;
+            a[k + 1] = re * bIm + im * bRe;
+        }
+    }
+
+    /**
+     * Divides a by b in {@code [from, to)}. The result is stored in a.
+     *
+     * @param a dividend
+     * @param b divisor
+     * @param from first element
+     * @param to last element, exclusive
+     */
+    public abstract void conjugateDivide(float[] a, float[] b, int from,
+            int to);
+
+    /**
+     * Calculates the modulus of a in {@code [from, to)}.
+     *
+     * @param a complex array
+     * @param out real array, indexed by element
+     * @param from first element
+     * @param to last element, exclusive
+     */
+    public void modulus(float[] a, float[] out, int from, int to) {
+        for (int k = from; k < to; k++) {
+            float re = a[2 * k];
+            float im = a[2 * k + 1];
+            out[k] = (float) Math.sqrt(re * re + im * im);
+        }
+    }
+
+    /**
+     * Calculates the squared modulus of a in {@code [from, to)}.
+     *
+     * @param a complex array
+     * @param out real array, indexed by element
+     * @param from first element
+     * @param to last element, exclusive
+     */
+    public void modulusSq(float[] a, float[] out, int from, int to) {
+        for (int k = from; k < to; k++) {
+            float re = a[2 * k];
+            float im = a[2 * k + 1];
+            out[k] = re * re + im * im;
+        }
+    }
+
+    /**
+     * Calculates the phase of a in {@code [from, to)}.
+     *
+     * @param a complex array
+     * @param out real array, indexed by element
+     * @param from first element
+     * @param to last element, exclusive
+     */
+    public abstract void phase(float[] a, float[] out, int from, int to);
+
+    /**
+     * Copies the real (part 0) or imaginary (part 1) part of a in
+     * {@code [from, to)}.
+     *
+     * @param a complex array
+     * @param part 0 or 1
+     * @param out real array, indexed by element
+     * @param from first element
+     * @param to last element, exclusive
+     */
+    public void part(float[] a, int part, float[] out, int from, int to) {
+        for (int k = from; k < to; k++) {
+            out[k] = a[2 * k + part];
+        }
+    }
+
+    private static class Scalar extends ComplexKernels {
+
+        @Override
+        public String getName() {
+            return "scalar";
+        }
+
+        @Override
+        public void conjugateDivide(float[] a, float[] b, int from, int to) {
+            for (int k = 2 * from; k < 2 * to; k += 2) {
+                float re = a[k];
+                float im = a[k + 1];
+                float bRe = b[k];
+                float bIm = b[k + 1];
+
+                float modSq = bRe * bRe + bIm * bIm;
+
+                a[k] = (re * bRe + im * bIm) / modSq;
+                a[k + 1] = (im * bRe - re * bIm) / modSq;
+            }
+        }
+
+        @Override
+        public void phase(float[] a, float[] out, int from, int to) {
+            for (int k = from; k < to; k++) {
+                out[k] = (float) Math.atan2(a[2 * k + 1], a[2 * k]);
+            }
+        }
+    }
+
+    private static class Fast extends ComplexKernels {
+
+        private static final float PI = (float) Math.PI;
+        private static final float PI_2 = (float) (Math.PI / 2);
+        private static final float PI_4 = (float) (Math.PI / 4);
+        private static final float TAN_PI_8 = 0.41421356f;
+
+        @Override
+        public String getName() {
+            return "fast";
+        }
+
+        @Override
+        public void conjugateDivide(float[] a, float[] b, int from, int to) {
+            for (int k = 2 * from; k < 2 * to; k += 2) {
+                float re = a[k];
+                float im = a[k + 1];
+                float bRe = b[k];
+                float bIm = b[k + 1];
+
+                float inv = 1 / (bRe * bRe + bIm * bIm);
+
+                a[k] = (re * bRe + im * bIm) * inv;
+                a[k + 1] = (im * bRe - re * bIm) * inv;
+            }
+        }
+
+        @Override
+        public void phase(float[] a, float[] out, int from, int to) {
+            for (int k = from; k < to; k++) {
+                out[k] = atan2(a[2 * k + 1], a[2 * k]);
+            }
+        }
+
+        /**
+         * Float arctangent of y / x in (-pi, pi]. The argument is reduced to
+         * [0, tan(pi / 8)] and the Cephes atanf polynomial is used.
+         */
+        private static float atan2(float y, float x) {
+            float ax = Math.abs(x);
+            float ay = Math.abs(y);
+
+            if (ax == 0 && ay == 0) {
+                return (x < 0 || 1 / x < 0) ? Math.copySign(PI, y) : y;
+            }
+
+            //t in [0, 1]
+            boolean swap = ay > ax;
+            float t = swap ? ax / ay : ay / ax;
+
+            float offset = 0;
+            if (t > TAN_PI_8) {
+                offset = PI_4;
+                t = (t - 1) / (t + 1);
+            }
+
+            float z = t * t;
+            float r = offset + ((((8.05374449538e-2f * z - 1.38776856032e-1f) * z
+                    + 1.99777106478e-1f) * z - 3.33329491539e-1f) * z * t + t);
+
+            if (swap) {
+                r = PI_2 - r;
+            }
+            if (x < 0) {
+                r = PI - r;
+            }
+
+            return Math.copySign(r, y);
+        }
+    }
+}
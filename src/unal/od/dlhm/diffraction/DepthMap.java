@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Arrays;
+
+/**
+ * Depth map of a z-sweep, built one plane at a time. The output plane is split
+ * in square tiles, and each tile keeps the distance of the plane where its
+ * {@link FocusMetric} was highest along with its amplitude in that plane, so
+ * the memory does not depend on the number of planes. The kept tiles make the
+ * all-in-focus image.
+ * <p>
+ * The planes must share the output size, so a tile covers the same region in
+ * all of them. Planes can be added from several threads, in any order.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class DepthMap {
+
+    /**
+     * Smallest tile size, the gradient needs a few pixels inside the tile.
+     */
+    public static final int MIN_TILE_SIZE = 8;
+
+    private final int M, N, tileSize, tilesX, tilesY;
+    private final FocusMetric metric;
+
+    //best metric and its distance for each tile, and the best tiles
+    private final float[] bestMetric;
+    private final float[] bestZ;
+    private final float[] composite;
+
+    private int planes;
+
+    /**
+     * Creates an empty depth map.
+     *
+     * @param M width of the planes
+     * @param N height of the planes
+     * @param tileSize tile size, the last row and column of tiles can be
+     * smaller
+     * @param metric focus metric
+     */
+    public DepthMap(int M, int N, int tileSize, FocusMetric metric) {
+        if (tileSize < MIN_TILE_SIZE) {
+            throw new IllegalArgumentException("Tile size must be at least "
+                    + MIN_TILE_SIZE + ".");
+        }
+
+        this.M = M;
+        this.N = N;
+        this.tileSize = tileSize;
+        this.metric = metric;
+
+        tilesX = (M + tileSize - 1) / tileSize;
+        tilesY = (N + tileSize - 1) / tileSize;
+
+        bestMetric = new float[tilesX * tilesY];
+        bestZ = new float[tilesX * tilesY];
+        Arrays.fill(bestMetric, Float.NEGATIVE_INFINITY);
+        Arrays.fill(bestZ, Float.NaN);
+
+        composite = new float[M * N];
+    }
+
+    /**
+     * Evaluates the tiles of a plane and keeps the ones better focused than
+     * in the previous planes.
+     *
+     * @param z distance of the plane
+     * @param amplitude M x N amplitude, not kept
+     */
+    public void add(float z, float[] amplitude) {
+        if (amplitude.length != M * N) {
+            throw new IllegalArgumentException("Amplitude size does not match "
+                    + "the depth map size.");
+        }
+
+        //the metrics are evaluated outside the lock
+        float[] values = new float[tilesX * tilesY];
+
+        for (int ty = 0, t = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++, t++) {
+                int x = tx * tileSize;
+                int y = ty * tileSize;
+                int w = Math.min(tileSize, M - x);
+                int h = Math.min(tileSize, N - y);
+
+                float[] tile = new float[w * h];
+                for (int j = 0; j < h; j++) {
+                    System.arraycopy(amplitude, (y + j) * M + x, tile, j * w, w);
+                }
+
+                values[t] = metric.evaluate(tile, w, h);
+            }
+        }
+
+        synchronized (this) {
+            for (int ty = 0, t = 0; ty < tilesY; ty++) {
+                for (int tx = 0; tx < tilesX; tx++, t++) {
+                    //NaN metrics, as in tiles without light, are never kept
+                    if (!(values[t] > bestMetric[t])) {
+                        continue;
+                    }
+
+                    bestMetric[t] = values[t];
+                    bestZ[t] = z;
+
+                    int x = tx * tileSize;
+                    int y = ty * tileSize;
+                    int w = Math.min(tileSize, M - x);
+                    int h = Math.min(tileSize, N - y);
+
+                    for (int j = y; j < y + h; j++) {
+                        System.arraycopy(amplitude, j * M + x, composite,
+                                j * M + x, w);
+                    }
+                }
+            }
+
+            planes++;
+        }
+    }
+
+    /**
+     * Returns the distance of best focus of each pixel, constant inside each
+     * tile. NaN in the tiles that were never focused.
+     *
+     * @return M x N depth map
+     */
+    public synchronized float[] getDepthMap() {
+        float[] depth = new float[M * N];
+
+        for (int j = 0; j < N; j++) {
+            int row = (j / tileSize) * tilesX;
+
+            for (int i = 0; i < M; i++) {
+                depth[j * M + i] = bestZ[row + i / tileSize];
+            }
+        }
+
+        return depth;
+    }
+
+    /**
+     * Returns the all-in-focus amplitude, each tile taken from its plane of
+     * best focus.
+     *
+     * @return M x N amplitude
+     */
+    public synchronized float[] getComposite() {
+        return composite.clone();
+    }
+
+    /**
+     * Returns the number of planes added.
+     *
+     * @return planes
+     */
+    public synchronized int getPlanes() {
+        return planes;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public FocusMetric getMetric() {
+        return metric;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+import java.util.HashMap;
+import org.jtransforms.fft.FloatFFT_1D;
+import org.jtransforms.fft.FloatFFT_2D;
+
+/**
+ * Process-wide registry of FFT plans. Creating a JTransforms plan computes its
+ * twiddle tables, and for lengths that are not 2, 3, 5, 7 smooth also the
+ * Bluestein chirps, so propagators of the same size share one plan per
+ * transform length instead of building their own. Plans only hold read-only
+ * tables once created, so the same instance can run several transforms at the
+ * same time.
+ * <p>
+ * The plans are small next to the kernels, so they are kept until
+ * {@link #clear()} is called.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class FftPlanCache {
+
+    private static final FftPlanCache INSTANCE = new FftPlanCache();
+
+    private final HashMap<Integer, FloatFFT_1D> plans1D;
+    private final HashMap<Long, FloatFFT_2D> plans2D;
+
+    private long memoryUsage;
+
+    private int hits;
+    private int misses;
+
+    private FftPlanCache() {
+        plans1D = new HashMap<Integer, FloatFFT_1D>();
+        plans2D = new HashMap<Long, FloatFFT_2D>();
+    }
+
+    /**
+     * Returns the shared registry.
+     *
+     * @return registry instance
+     */
+    public static FftPlanCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the plan for complex 1D transforms of n elements, creating it
+     * if needed.
+     *
+     * @param n transform length
+     * @return plan
+     */
+    public synchronized FloatFFT_1D getFloatFFT_1D(int n) {
+        FloatFFT_1D plan = plans1D.get(n);
+
+        if (plan == null) {
+            misses++;
+            plan = new FloatFFT_1D(n);
+            plans1D.put(n, plan);
+            memoryUsage += estimateSize(n);
+        } else {
+            hits++;
+        }
+
+        return plan;
+    }
+
+    /**
+     * Returns the plan for complex 2D transforms of rows x columns elements,
+     * creating it if needed.
+     *
+     * @param rows number of rows
+     * @param columns number of columns
+     * @return plan
+     */
+    public synchronized FloatFFT_2D getFloatFFT_2D(int rows, int columns) {
+        Long key = ((long) rows << 32) | columns;
+        FloatFFT_2D plan = plans2D.get(key);
+
+        if (plan == null) {
+            misses++;
+            plan = new FloatFFT_2D(rows, columns);
+            plans2D.put(key, plan);
+            memoryUsage += estimateSize(rows) + estimateSize(columns);
+        } else {
+            hits++;
+        }
+
+        return plan;
+    }
+
+    /**
+     * Rough size of a 1D plan: the twiddle tables take a few floats per
+     * element. JTransforms only uses Bluestein's algorithm for lengths that
+     * are not a power of two and whose factor left after taking out 2, 3 and
+     * 5 is at least 211; those also keep two chirps of the next power of two
+     * above 2n.
+     */
+    private static long estimateSize(int n) {
+        int leftover = n;
+        for (int factor : new int[]{2, 3, 5}) {
+            while (leftover % factor == 0) {
+                leftover /= factor;
+            }
+        }
+
+        if (Integer.bitCount(n) == 1 || leftover < 211) {
+            return 4L * (4L * n);
+        }
+
+        long m = Long.highestOneBit(2L * n - 1) << 1;
+        return 4L * (4L * n + 4L * m);
+    }
+
+    /**
+     * Returns a log line with the plans created since {@link #getMisses()}
+     * returned missesBefore, the cached plans and their memory.
+     *
+     * @param missesBefore misses before the plans were requested
+     * @return description of the cache
+     */
+    public synchronized String describe(int missesBefore) {
+        return "FFT plans: " + (misses - missesBefore) + " new, " + getPlans()
+                + " cached (" + memoryUsage / 1024 + " KB)";
+    }
+
+    /**
+     * Returns the approximate memory, in bytes, used by the cached plans.
+     *
+     * @return memory usage
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * Returns the number of cached plans.
+     *
+     * @return number of plans
+     */
+    public synchronized int getPlans() {
+        return plans1D.size() + plans2D.size();
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of plans created so far.
+     *
+     * @return number of created plans
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes all the plans from the registry. Propagators holding a plan
+     * keep using it.
+     */
+    public synchronized void clear() {
+        plans1D.clear();
+        plans2D.clear();
+        memoryUsage = 0;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import org.jtransforms.fft.FloatFFT_2D;
+
+/**
+ * Sharpness measures of a reconstructed amplitude, used to find the focus
+ * plane. All of them peak at focus and are normalized by the mean amplitude,
+ * so they do not depend on the overall scale of the field.
+ * <p>
+ * All of them suit amplitude objects. The gradient variance also finds the
+ * focus of phase objects, whose amplitude only shows the edges.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public enum FocusMetric {
+
+    /**
+     * Square root of the coefficient of variation of the amplitude.
+     */
+    TAMURA("Tamura coefficient") {
+
+        @Override
+        public float evaluate(float[] amplitude, int M, int N) {
+            double[] moments = moments(amplitude);
+
+            return (float) Math.sqrt(Math.sqrt(moments[1]) / moments[0]);
+        }
+    },
+    /**
+     * Variance of the Sobel gradient magnitude.
+     */
+    GRADIENT_VARIANCE("Gradient variance") {
+
+        @Override
+        public float evaluate(float[] amplitude, int M, int N) {
+            double mean = moments(amplitude)[0];
+
+            double sum = 0;
+            double sum2 = 0;
+
+            for (int j = 1; j < N - 1; j++) {
+                for (int i = 1; i < M - 1; i++) {
+                    int k = j * M + i;
+
+                    float a = amplitude[k - M - 1];
+                    float b = amplitude[k - M];
+                    float c = amplitude[k - M + 1];
+                    float d = amplitude[k - 1];
+                    float f = amplitude[k + 1];
+                    float g = amplitude[k + M - 1];
+                    float h = amplitude[k + M];
+                    float l = amplitude[k + M + 1];
+
+                    float gx = (c + 2 * f + l) - (a + 2 * d + g);
+                    float gy = (g + 2 * h + l) - (a + 2 * b + c);
+
+                    double magnitude = Math.sqrt(gx * gx + gy * gy);
+                    sum += magnitude;
+                    sum2 += magnitude * magnitude;
+                }
+            }
+
+            long n = (long) (M - 2) * (N - 2);
+            double gradientMean = sum / n;
+            double variance = sum2 / n - gradientMean * gradientMean;
+
+            return (float) (variance / (mean * mean));
+        }
+    },
+    /**
+     * Variance of the amplitude.
+     */
+    AMPLITUDE_VARIANCE("Amplitude variance") {
+
+        @Override
+        public float evaluate(float[] amplitude, int M, int N) {
+            double[] moments = moments(amplitude);
+
+            return (float) (moments[1] / (moments[0] * moments[0]));
+        }
+    },
+    /**
+     * Sum of the magnitude of the amplitude spectrum outside the zero
+     * frequency, the l1 norm of the spectrum.
+     */
+    SPECTRAL_ENERGY("Spectral energy") {
+
+        @Override
+        public float evaluate(float[] amplitude, int M, int N) {
+            float[] spectrum = new float[2 * M * N];
+            System.arraycopy(amplitude, 0, spectrum, 0, M * N);
+
+            FloatFFT_2D fft = FftPlanCache.getInstance().getFloatFFT_2D(N, M);
+            fft.realForwardFull(spectrum);
+
+            double sum = 0;
+            for (int k = 2; k < spectrum.length; k += 2) {
+                sum += Math.hypot(spectrum[k], spectrum[k + 1]);
+            }
+
+            //the zero frequency is the sum of the amplitude
+            return (float) (sum / Math.abs(spectrum[0]));
+        }
+    };
+
+    private final String name;
+
+    private FocusMetric(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Evaluates the metric.
+     *
+     * @param amplitude M x N amplitude
+     * @param M width
+     * @param N height
+     * @return metric
+     */
+    public abstract float evaluate(float[] amplitude, int M, int N);
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Returns the mean and the variance of an array.
+     */
+    private static double[] moments(float[] data) {
+        double sum = 0;
+        double sum2 = 0;
+
+        for (float v : data) {
+            sum += v;
+            sum2 += (double) v * v;
+        }
+
+        double mean = sum / data.length;
+        double variance = sum2 / data.length - mean * mean;
+
+        return new double[]{mean, Math.max(0, variance)};
+    }
+}
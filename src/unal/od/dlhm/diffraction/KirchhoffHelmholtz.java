@@ -16,9 +16,6 @@
 
 package unal.od.dlhm.diffraction;
 
-import org.jtransforms.fft.FloatFFT_2D;
-import unal.od.jdiffraction.cpu.utils.ArrayUtils;
-
 /**
  *
  * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
@@ -27,243 +24,399 @@ import unal.od.jdiffraction.cpu.utils.ArrayUtils;
  */
 public class KirchhoffHelmholtz {
 
+    //number of incremental steps between exact calculations of kernel1
+    private static final int RESYNC_STEPS = 32;
+
     private final int M, N;
-    private final float z, L, lambda, dx, dy, dxOut, dyOut;
-    private float xo, yo, Xo, Yo, dX, dY;
+    private final float L, lambda, dxOut, dyOut;
+    private final float dX, dY;
+    private float z;
+
+    private final ComplexField kernel1;
+    private final TransferFunction transfer;
 
-    private float[][] kernel1, kernel2, outputPhase;
-    private final FloatFFT_2D fft;
+    //stepZ state, the phase rotation of the next step and its change
+    private ComplexField increment, incrementStep;
+    private float stepDz = Float.NaN;
+    //z of the last exact kernel1 and number of steps since then
+    private float zSync;
+    private int steps;
+    private boolean cached;
 
     public KirchhoffHelmholtz(int M, int N, float lambda, float z, float L, float dx,
             float dy, float dxOut, float dyOut) {
 
-        this.M = M;
-        this.N = N;
-        this.lambda = lambda;
-        this.dx = dx;
-        this.dy = dy;
-        this.dxOut = dxOut;
-        this.dyOut = dyOut;
-        this.z = z;
-        this.L = L;
+        this(new TransferFunction(M, N, lambda, L, dx, dy, dxOut, dyOut), z);
+    }
 
-        kernel1 = new float[M][2 * N];
-        outputPhase = new float[M][2 * N];
-        fft = new FloatFFT_2D(2 * M, 2 * N);
+    /**
+     * Creates a propagator whose convolution is padded according to the pad
+     * factor.
+     *
+     * @param M size of the hologram
+     * @param N size of the hologram
+     * @param lambda wavelength
+     * @param z reconstruction distance
+     * @param L source to screen distance
+     * @param dx input pixel size
+     * @param dy input pixel size
+     * @param dxOut output pixel size
+     * @param dyOut output pixel size
+     * @param padFactor pad factor, see {@link PaddingPlanner}
+     */
+    public KirchhoffHelmholtz(int M, int N, float lambda, float z, float L,
+            float dx, float dy, float dxOut, float dyOut, float padFactor) {
 
-        calculateKernels();
+        this(new TransferFunction(M, N, lambda, L, dx, dy, dxOut, dyOut,
+                padFactor), z);
     }
 
-    private void calculateKernels() {
-        float L2 = L * L;
-        float z2 = z * z;
-
-        //hologram coordinates
-        xo = -dx * M / 2; //first coordinate
-        yo = -dy * N / 2;
+    /**
+     * Creates a propagator for the distance z that shares the z independent
+     * kernels of the transfer function. Only kernel1 is calculated.
+     *
+     * @param transfer z independent part of the propagator
+     * @param z reconstruction distance
+     */
+    public KirchhoffHelmholtz(TransferFunction transfer, float z) {
+        this.transfer = transfer;
+
+        this.M = transfer.M;
+        this.N = transfer.N;
+        this.lambda = transfer.lambda;
+        this.dxOut = transfer.dxOut;
+        this.dyOut = transfer.dyOut;
+        this.z = z;
+        this.L = transfer.L;
 
-        float xf = dx * (M / 2 - 1); //last coordinate
-        float yf = dy * (N / 2 - 1);
+        this.dX = transfer.dX;
+        this.dY = transfer.dY;
 
-        //transformed coordinates
-        Xo = (float) ((xo * L) / Math.sqrt(L2 + xo * xo)); //first transformed coordinate
-        Yo = (float) ((yo * L) / Math.sqrt(L2 + yo * yo));
+        kernel1 = new ComplexField(M, N);
 
-        float Xf = (float) ((xf * L) / Math.sqrt(L2 + xf * xf)); //last transformed coordinate
-        float Yf = (float) ((yf * L) / Math.sqrt(L2 + yf * yf));
+        calculateKernel();
+    }
 
-        //pixel size for the transformed hologram
-        dX = (Xf - Xo) / M;
-        dY = (Yf - Yo) / N;
+    /**
+     * Calculates kernel1. It only depends on m^2 and n^2, so the m, n >= 0
+     * quadrant is calculated and mirrored into the other three. The rows of
+     * that quadrant are split between threads.
+     */
+    private void calculateKernel() {
+        final float L2 = L * L;
+        final float z2 = z * z;
 
-        int M2 = (M / 2) - 1;
-        int N2 = (N / 2) - 1;
+        final int M2 = (M - 1) / 2;
+        final int N2 = (N - 1) / 2;
 
         float k = 2 * (float) Math.PI / lambda;
-        float factor = k / L2;
-        float factor2 = k / (2 * L);
-
-        float[][] kernel2 = new float[M][2 * N];
-
-        for (int i = 0, m = -M2; i < M; i++, m++) {
+        final float factor = k / L2;
+        final float factor2 = k / (2 * L);
+
+        //terms that only depend on m, for m >= 0
+        final int mCount = M - M2;
+        final float[] Rx = new float[mCount];
+        final float[] rpx = new float[mCount];
+        final float[] a = new float[mCount];
+
+        for (int m = 0; m < mCount; m++) {
+            Rx[m] = L2 - (m * m * dX * dX);
+            rpx[m] = z2 + (m * m * dxOut * dxOut);
+            a[m] = m * m * dX * dxOut;
+        }
 
-            float Rx = L2 - (m * m * dX * dX);
-            float rpx = z2 + (m * m * dxOut * dxOut);
-            float a = m * m * dX * dxOut;
+        final float[] kernel = kernel1.getData();
 
-            for (int j = 0, n = -N2; j < N; j++, n++) {
+        ParallelUtils.parallelFor(N - N2, new ParallelUtils.Loop() {
 
-                float R = (float) Math.sqrt(Rx - (n * n * dY * dY));
-                float rp2 = rpx + (n * n * dyOut * dyOut);
+            @Override
+            public void run(int start, int end) {
+                for (int n = start; n < end; n++) {
+                    int row = 2 * (M * (N2 + n) + M2);
 
-                float phase1 = -factor * R * ((z * L) - (rp2 / 2));
-                float phase2 = -factor2 * (a + (n * n * dY * dyOut));
+                    float ny = n * n * dY * dY;
+                    float nyOut = n * n * dyOut * dyOut;
+                    float nb = n * n * dY * dyOut;
 
-                float factor3 = (-0.5f / lambda) * (1 / (R * R)) * (1 + (R / L));
-                float phase = phase1 + phase2;
-                kernel1[i][2 * j] = -factor3 * (float) Math.sin(phase);
-                kernel1[i][2 * j + 1] = factor3 * (float) Math.cos(phase);
+                    for (int m = 0; m < mCount; m++) {
+                        float R = (float) Math.sqrt(Rx[m] - ny);
+                        float rp2 = rpx[m] + nyOut;
 
-                kernel2[i][2 * j] = (float) Math.cos(-phase2);
-                kernel2[i][2 * j + 1] = (float) Math.sin(-phase2);
+                        float phase1 = -factor * R * ((z * L) - (rp2 / 2));
+                        float phase2 = -factor2 * (a[m] + nb);
 
-                //output plane phase
-                outputPhase[i][2 * j] = dX * dY * (float) Math.cos(phase2);
-                outputPhase[i][2 * j + 1] = dX * dY * (float) Math.sin(phase2);
+                        float factor3 = (-0.5f / lambda) * (1 / (R * R)) * (1 + (R / L));
+                        float phase = phase1 + phase2;
+                        kernel[row + 2 * m] = -factor3 * (float) Math.sin(phase);
+                        kernel[row + 2 * m + 1] = factor3 * (float) Math.cos(phase);
+                    }
+                }
             }
-        }
+        });
 
-        this.kernel2 = padComplexArray(M, N, kernel2, 2);
-        fft.complexForward(this.kernel2);
+        mirrorQuadrant(kernel);
     }
 
     /**
-     * Function to pad arrays. The array is padded into a matrix with
-     * @code{pad*M x pad*N} elements.
+     * Calculates the phase rotations that take kernel1 from z to z + dz and
+     * the change of that rotation between two steps of dz. With
+     * {@code c(z) = -k (zL - z^2 / 2) / L^2}, kernel1 is a z independent term
+     * times {@code exp(i c(z) R)}, and
+     * {@code c(z + dz) - c(z) = -k dz (L - z - dz / 2) / L^2} changes by
+     * {@code k dz^2 / L^2} every step.
      *
-     * @param M size of a
-     * @param N size of a
-     * @param a input array
-     * @param pad padding factor
-     * @return padded array
+     * @param dz step
      */
-    private float[][] padComplexArray(int M, int N, float[][] a, int pad) {
-        if (pad <= 1) {
-            return a;
+    private void calculateIncrements(float dz) {
+        final float L2 = L * L;
+
+        final int M2 = (M - 1) / 2;
+        final int N2 = (N - 1) / 2;
+
+        float k = 2 * (float) Math.PI / lambda;
+        final float c = -(k / L2) * dz * (L - z - dz / 2);
+        final float c2 = (k / L2) * dz * dz;
+
+        final int mCount = M - M2;
+        final float[] Rx = new float[mCount];
+
+        for (int m = 0; m < mCount; m++) {
+            Rx[m] = L2 - (m * m * dX * dX);
         }
 
-        float[][] padded = new float[pad * M][pad * 2 * N];
+        final float[] inc = increment.getData();
+        final float[] inc2 = incrementStep.getData();
+
+        ParallelUtils.parallelFor(N - N2, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int n = start; n < end; n++) {
+                    int row = 2 * (M * (N2 + n) + M2);
+                    float ny = n * n * dY * dY;
 
-        int iStart = (pad - 1) * M / 2;
-        int jStart = (pad - 1) * N / 2;
+                    for (int m = 0; m < mCount; m++) {
+                        float R = (float) Math.sqrt(Rx[m] - ny);
 
-        for (int i = 0, i2 = iStart; i < M; i++, i2++) {
-            for (int j = 0, j2 = jStart; j < N; j++, j2++) {
-                padded[i2][2 * j2] = a[i][2 * j];
-                padded[i2][2 * j2 + 1] = a[i][2 * j + 1];
+                        inc[row + 2 * m] = (float) Math.cos(c * R);
+                        inc[row + 2 * m + 1] = (float) Math.sin(c * R);
+
+                        inc2[row + 2 * m] = (float) Math.cos(c2 * R);
+                        inc2[row + 2 * m + 1] = (float) Math.sin(c2 * R);
+                    }
+                }
             }
-        }
+        });
 
-        return padded;
+        mirrorQuadrant(inc);
+        mirrorQuadrant(inc2);
     }
 
     /**
-     * Extracts a portion of a padded array. The extracted array will have
-     * @code{Mout x Nout} elements.
+     * Copies the m, n >= 0 quadrant of an even function of m and n into the
+     * other three. The last row and column of even sizes have no mirror.
      *
-     * @param M size of padded
-     * @param N size of padded
-     * @param padded input padded array
-     * @param Mout size of output
-     * @param Nout size of output
-     * @return output matrix
+     * @param data M x N field data
      */
-    private void unpadComplexArray(int M, int N, float[][] padded, int Mout,
-            int Nout, float[][] a) {
+    private void mirrorQuadrant(final float[] data) {
+        final int M2 = (M - 1) / 2;
+        final int N2 = (N - 1) / 2;
+
+        ParallelUtils.parallelFor(N - N2, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int n = start; n < end; n++) {
+                    int row = 2 * M * (N2 + n);
 
-        int iStart = (M - Mout) / 2;
-        int jStart = (N - Nout) / 2;
+                    for (int m = 1; m <= M2; m++) {
+                        data[row + 2 * (M2 - m)] = data[row + 2 * (M2 + m)];
+                        data[row + 2 * (M2 - m) + 1] = data[row + 2 * (M2 + m) + 1];
+                    }
 
-        for (int i = 0, i2 = iStart; i < Mout; i++, i2++) {
-            for (int j = 0, j2 = jStart; j < Nout; j++, j2++) {
-                a[i][2 * j] = padded[i2][2 * j2];
-                a[i][2 * j + 1] = padded[i2][2 * j2 + 1];
+                    if (n > 0 && n <= N2) {
+                        System.arraycopy(data, row, data, 2 * M * (N2 - n), 2 * M);
+                    }
+                }
             }
-        }
+        });
     }
 
-    public float[][] interpolate(float[][] holo) {
-        if (M != holo.length || N != (holo[0].length)) {
-            throw new IllegalArgumentException("Array dimension must be " + M + " x " + N + ".");
+    /**
+     * Moves this propagator to z + dz. Repeated steps of the same size update
+     * kernel1 with two complex products per pixel instead of calculating it
+     * again; every {@value #RESYNC_STEPS} steps, or when dz changes, kernel1
+     * is calculated exactly so the rounding errors do not build up.
+     * <p>
+     * Propagators from {@link PropagatorCache} are shared and can not be
+     * stepped.
+     *
+     * @param dz step
+     */
+    public void stepZ(float dz) {
+        if (cached) {
+            throw new IllegalStateException("Cached propagators can not be stepped.");
         }
 
-        float[][] tmp = new float[M][N];
+        if (increment == null) {
+            increment = new ComplexField(M, N);
+            incrementStep = new ComplexField(M, N);
+        }
 
-        float L2 = L * L;
+        boolean sameStep = Float.floatToIntBits(dz) == Float.floatToIntBits(stepDz);
+        if (!sameStep) {
+            zSync = z;
+            steps = 0;
+        }
 
-        int M2 = M / 2;
-        int N2 = N / 2;
+        //z is not accumulated, so it matches the product of the rotations
+        steps++;
+        z = zSync + steps * dz;
 
-        int endM = M - 1;
-        int endN = N - 1;
+        if (!sameStep || steps >= RESYNC_STEPS) {
+            calculateKernel();
 
-        for (int i = 0; i < M2; i++) {
-            for (int j = 0; j < N2; j++) {
+            stepDz = dz;
+            calculateIncrements(dz);
 
-                float X = Xo + i * dX;
-                float Y = Yo + j * dY;
+            zSync = z;
+            steps = 0;
+            return;
+        }
 
-                float R = (float) (1.0f / Math.sqrt(L2 - X * X - Y * Y));
+        kernel1.multiply(increment);
+        increment.multiply(incrementStep);
+    }
 
-                float newX = X * L * R;
-                float newY = Y * L * R;
+    /**
+     * Marks this propagator as stored in the cache.
+     */
+    void setCached() {
+        cached = true;
+    }
 
-                float xc = (newX - xo) / dx;
-                float yc = (newY - yo) / dy;
+    public float getZ() {
+        return z;
+    }
 
-                int ixc = (int) Math.floor(xc);
-                int iyc = (int) Math.floor(yc);
+    /**
+     * Remaps the hologram onto the transformed coordinates. The remap table
+     * only depends on the geometry and is shared through
+     * {@link PropagatorCache}, so only the first hologram of a geometry pays
+     * for the coordinate transform.
+     *
+     * @param holo M x N hologram
+     * @return interpolated field
+     */
+    public ComplexField interpolate(float[][] holo) {
+        if (M != holo.length || N != (holo[0].length)) {
+            throw new IllegalArgumentException("Array dimension must be " + M + " x " + N + ".");
+        }
 
-                float x1frac = ixc + 1.0f - xc;
-                float x2frac = 1.0f - x1frac;
-                float y1frac = iyc + 1.0f - yc;
-                float y2frac = 1.0f - y1frac;
+        ComplexField field = new ComplexField(M, N);
+        PropagatorCache.getInstance().getRemapTable(transfer).apply(holo, field);
 
-                float x1y1 = x1frac * y1frac;
-                float x1y2 = x1frac * y2frac;
-                float x2y1 = x2frac * y1frac;
-                float x2y2 = x2frac * y2frac;
+        return field;
+    }
 
-                //Teniendo todos los valores listos, ahora hacemos el "remapeo" sobre el holograma
-                if (ixc > 0 && ixc < M / 2 && iyc > 0 && iyc < N / 2) {
-                    //Cuadrante 1
-                    tmp[i][j] = x1y1 * holo[ixc][iyc]
-                            + x2y1 * holo[ixc + 1][iyc]
-                            + x1y2 * holo[ixc][iyc + 1]
-                            + x2y2 * holo[ixc + 1][iyc + 1];
+    public void diffract(ComplexField field) {
+        diffract(field, new Workspace());
+    }
 
-                    //Cuadrante 2
-                    tmp[endM - i][j] = x1y1 * holo[endM - ixc][iyc]
-                            + x2y1 * holo[endM - (ixc + 1)][iyc]
-                            + x1y2 * holo[endM - ixc][iyc + 1]
-                            + x2y2 * holo[endM - (ixc + 1)][iyc + 1];
+    /**
+     * Propagates the field using the buffers of the workspace. The result is
+     * stored in field.
+     *
+     * @param field M x N field
+     * @param workspace work buffers
+     */
+    public void diffract(ComplexField field, Workspace workspace) {
+        diffract(new ComplexField[]{field}, workspace);
+    }
 
-                    //Cuadrante 3
-                    tmp[i][endN - j] = x1y1 * holo[ixc][endN - iyc]
-                            + x2y1 * holo[ixc + 1][endN - iyc]
-                            + x1y2 * holo[ixc][endN - (iyc + 1)]
-                            + x2y2 * holo[ixc + 1][endN - (iyc + 1)];
+    public void diffract(ComplexField... fields) {
+        diffract(fields, new Workspace());
+    }
 
-                    //Cuadrante 4
-                    tmp[endM - i][endN - j] = x1y1 * holo[endM - ixc][endN - iyc]
-                            + x2y1 * holo[endM - (ixc + 1)][endN - iyc]
-                            + x1y2 * holo[endM - ixc][endN - (iyc + 1)]
-                            + x2y2 * holo[endM - (ixc + 1)][endN - (iyc + 1)];
-                }
-            }
-        }
+    /**
+     * Propagates several fields at once, for instance a hologram and its
+     * reference. Every kernel is read once for all the fields and the FFTs of
+     * all of them run in the same parallel loops. The results are stored in
+     * the fields.
+     *
+     * @param fields M x N fields
+     * @param workspace work buffers
+     */
+    public void diffract(ComplexField[] fields, Workspace workspace) {
+        diffractWithoutOutputPhase(fields, workspace);
 
-        return ArrayUtils.complexAmplitude2(tmp, null);
+        transfer.multiplyOutputPhase(fields);
     }
 
-    public void diffract(float[][] field) {
-        if (M != field.length || N != (field[0].length / 2)) {
-            throw new IllegalArgumentException("Array dimension must be " + M + " x " + 2 * N + ".");
+    /**
+     * Propagates the fields, leaving out the output plane phase. The phase is
+     * applied by an {@link OutputExtractor} created with the transfer
+     * function of this propagator, in the same pass that extracts the
+     * outputs.
+     *
+     * @param fields M x N fields
+     * @param workspace work buffers
+     */
+    public void diffractWithoutOutputPhase(ComplexField[] fields,
+            Workspace workspace) {
+
+        for (ComplexField field : fields) {
+            if (M != field.getWidth() || N != field.getHeight()) {
+                throw new IllegalArgumentException("Field dimension must be " + M + " x " + N + ".");
+            }
         }
 
-        ArrayUtils.complexMultiplication2(field, kernel1);
-        float[][] paddedField = padComplexArray(M, N, field, 2);
+        ComplexField.multiply(fields, kernel1);
 
-        fft.complexForward(paddedField);
+        transfer.convolveKernel2(fields, workspace);
+    }
 
-        ArrayUtils.complexMultiplication2(paddedField, kernel2);
+    /**
+     * Propagates the field to a region of the reconstruction plane. The field
+     * is multiplied by kernel1 in place, and the region is evaluated with
+     * chirp-z transforms instead of the padded convolution.
+     *
+     * @param field M x N field, overwritten
+     * @param region region created with the transfer function of this
+     * propagator
+     * @return W x H field of the region
+     */
+    public ComplexField diffract(ComplexField field, RegionTransform region) {
+        if (M != field.getWidth() || N != field.getHeight()) {
+            throw new IllegalArgumentException("Field dimension must be " + M + " x " + N + ".");
+        }
 
-        fft.complexInverse(paddedField, true);
+        if (region.transfer != transfer) {
+            throw new IllegalArgumentException("Region must be created with the transfer function of the propagator.");
+        }
+
+        field.multiply(kernel1);
 
-        ArrayUtils.complexShift(paddedField);
+        return region.apply(field);
+    }
 
-        unpadComplexArray(2 * M, 2 * N, paddedField, M, N, field);
+    /**
+     * Returns the memory, in bytes, taken by the kernels of this propagator.
+     *
+     * @return kernels size
+     */
+    public long getKernelsSize() {
+        //kernel1 has M x N complex elements, the rest of the kernels belong to the transfer
+        //function
+        return 4L * (2L * M * N);
+    }
 
-        ArrayUtils.complexMultiplication2(field, outputPhase);
+    /**
+     * Returns the z independent part of this propagator.
+     *
+     * @return transfer function
+     */
+    public TransferFunction getTransferFunction() {
+        return transfer;
     }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Padded rows of a convolution kept in a memory-mapped scratch file. A file
+ * can not be mapped in one piece above 2 GB, so it is mapped in segments of
+ * whole rows. The rows are read and written in contiguous runs, and the pages
+ * are kept in memory by the operating system only while they are in use.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+class MappedRows {
+
+    private final int P, rows;
+    private final int rowsPerSegment;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FloatBuffer[] segments;
+
+    /**
+     * Creates a scratch file for the rows in the given directory.
+     *
+     * @param directory scratch directory
+     * @param P padded width, complex elements per row
+     * @param rows number of rows
+     */
+    MappedRows(File directory, int P, int rows) {
+        this.P = P;
+        this.rows = rows;
+
+        long rowBytes = 8L * P;
+        rowsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+
+        try {
+            file = File.createTempFile("dlhm", ".rows", directory);
+            file.deleteOnExit();
+
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(rowBytes * rows);
+
+            FileChannel channel = raf.getChannel();
+            segments = new FloatBuffer[(rows + rowsPerSegment - 1) / rowsPerSegment];
+
+            for (int s = 0; s < segments.length; s++) {
+                int segmentRows = Math.min(rowsPerSegment, rows - s * rowsPerSegment);
+
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+                        rowBytes * s * rowsPerSegment, rowBytes * segmentRows)
+                        .order(ByteOrder.nativeOrder()).asFloatBuffer();
+            }
+        } catch (IOException e) {
+            close();
+            throw new IllegalStateException("Scratch file could not be created in " + directory + ".", e);
+        }
+    }
+
+    /**
+     * Reads {@code length} floats of a row, starting at float {@code from}.
+     *
+     * @param row row index
+     * @param from first float in the row
+     * @param dst destination array
+     * @param offset first position in dst
+     * @param length number of floats
+     */
+    void get(int row, int from, float[] dst, int offset, int length) {
+        buffer(row, from).get(dst, offset, length);
+    }
+
+    /**
+     * Writes {@code length} floats of a row, starting at float {@code from}.
+     *
+     * @param row row index
+     * @param from first float in the row
+     * @param src source array
+     * @param offset first position in src
+     * @param length number of floats
+     */
+    void put(int row, int from, float[] src, int offset, int length) {
+        buffer(row, from).put(src, offset, length);
+    }
+
+    /**
+     * The segments are shared by all the threads, so each access uses its
+     * own view to keep its position.
+     */
+    private FloatBuffer buffer(int row, int from) {
+        FloatBuffer buffer = segments[row / rowsPerSegment].duplicate();
+        buffer.position(2 * P * (row % rowsPerSegment) + from);
+        return buffer;
+    }
+
+    boolean hasSize(int P, int rows) {
+        return this.P == P && this.rows == rows;
+    }
+
+    /**
+     * Returns the size, in bytes, of the scratch file.
+     *
+     * @return file size
+     */
+    long getFileSize() {
+        return 8L * P * rows;
+    }
+
+    /**
+     * Closes and deletes the scratch file. The mapped pages are released when
+     * the buffers are garbage collected; if the system does not allow to
+     * delete a mapped file, it is deleted when the JVM exits.
+     */
+    void close() {
+        try {
+            if (raf != null) {
+                raf.close();
+            }
+        } catch (IOException e) {
+            //the file is deleted anyway
+        }
+
+        if (file != null) {
+            file.delete();
+        }
+    }
+}
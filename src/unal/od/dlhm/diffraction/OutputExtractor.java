@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Fused extraction of the real valued outputs of a reconstruction. Calling
+ * {@link ComplexField#phase()}, {@link ComplexField#modulus()} and the other
+ * extractors one after another reads the whole field once per output, and the
+ * phase of a hologram over its reference needs a copy and a division pass
+ * first. Here the field is walked once, in blocks of rows small enough to stay
+ * in cache: each block is multiplied by the output plane phase, divided by the
+ * reference and every selected output is written from it before moving to the
+ * next block.
+ * <p>
+ * Created with a {@link TransferFunction}, the extractor applies the output
+ * plane phase of the fields propagated with
+ * {@link KirchhoffHelmholtz#diffractWithoutOutputPhase}, so that pass does not
+ * need its own read and write of the field. Created with a size, the fields
+ * are taken as they are.
+ * <p>
+ * The output arrays are in ImageJ pixel order and can be used as
+ * FloatProcessor pixels.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class OutputExtractor {
+
+    //complex elements per block of rows, 64 KB
+    private static final int BLOCK_SIZE = 8192;
+
+    private static final ComplexKernels KERNELS = ComplexKernels.getInstance();
+
+    private final int width, height;
+    private final float[] outputPhaseX, outputPhaseY;
+
+    /**
+     * Creates an extractor for fields that already carry the output plane
+     * phase.
+     *
+     * @param width field width
+     * @param height field height
+     */
+    public OutputExtractor(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        outputPhaseX = null;
+        outputPhaseY = null;
+    }
+
+    /**
+     * Creates an extractor that applies the output plane phase of the transfer
+     * function.
+     *
+     * @param transfer transfer function of the propagator
+     */
+    public OutputExtractor(TransferFunction transfer) {
+        width = transfer.M;
+        height = transfer.N;
+
+        outputPhaseX = transfer.outputPhaseX;
+        outputPhaseY = transfer.outputPhaseY;
+    }
+
+    /**
+     * Extracts the outputs with a non-null array. With a reference the outputs
+     * are taken from the quotient of the field over the reference. The field
+     * is overwritten with the complex values the outputs are taken from.
+     *
+     * @param field field
+     * @param reference reference, or null
+     * @param phase phase, or null
+     * @param amplitude modulus, or null
+     * @param intensity squared modulus, or null
+     * @param real real part, or null
+     * @param imaginary imaginary part, or null
+     */
+    public void extract(ComplexField field, ComplexField reference,
+            final float[] phase, final float[] amplitude,
+            final float[] intensity, final float[] real,
+            final float[] imaginary) {
+
+        checkSize(field);
+        if (reference != null) {
+            checkSize(reference);
+        }
+
+        checkLength(phase);
+        checkLength(amplitude);
+        checkLength(intensity);
+        checkLength(real);
+        checkLength(imaginary);
+
+        final float[] data = field.getData();
+        final float[] referenceData = (reference == null) ? null
+                : reference.getData();
+
+        final int blockRows = Math.max(1, BLOCK_SIZE / width);
+
+        ParallelUtils.parallelFor(height, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int j0 = start; j0 < end; j0 += blockRows) {
+                    int j1 = Math.min(j0 + blockRows, end);
+
+                    int from = j0 * width;
+                    int to = j1 * width;
+
+                    if (outputPhaseX != null) {
+                        multiplyOutputPhase(data, j0, j1);
+                        if (referenceData != null) {
+                            multiplyOutputPhase(referenceData, j0, j1);
+                        }
+                    }
+
+                    if (referenceData != null) {
+                        KERNELS.conjugateDivide(data, referenceData, from, to);
+                    }
+
+                    if (phase != null) {
+                        KERNELS.phase(data, phase, from, to);
+                    }
+                    if (amplitude != null) {
+                        KERNELS.modulus(data, amplitude, from, to);
+                    }
+                    if (intensity != null) {
+                        KERNELS.modulusSq(data, intensity, from, to);
+                    }
+                    if (real != null) {
+                        KERNELS.part(data, 0, real, from, to);
+                    }
+                    if (imaginary != null) {
+                        KERNELS.part(data, 1, imaginary, from, to);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Multiplies rows {@code [j0, j1)} by the outer product of the output
+     * phase factors, as {@link TransferFunction} does.
+     */
+    private void multiplyOutputPhase(float[] data, int j0, int j1) {
+        for (int j = j0; j < j1; j++) {
+            float yr = outputPhaseY[2 * j];
+            float yi = outputPhaseY[2 * j + 1];
+
+            for (int i = 0, k = 2 * width * j; i < width; i++, k += 2) {
+                float xr = outputPhaseX[2 * i];
+                float xi = outputPhaseX[2 * i + 1];
+
+                float kr = xr * yr - xi * yi;
+                float ki = xr * yi + xi * yr;
+
+                float re = data[k];
+                float im = data[k + 1];
+
+                data[k] = re * kr - im * ki;
+                data[k + 1] = re * ki + im * kr;
+            }
+        }
+    }
+
+    private void checkSize(ComplexField field) {
+        if (field.getWidth() != width || field.getHeight() != height) {
+            throw new IllegalArgumentException("Field dimension must be " + width + " x " + height + ".");
+        }
+    }
+
+    private void checkLength(float[] out) {
+        if (out != null && out.length != width * height) {
+            throw new IllegalArgumentException("Array length must be " + width * height + ".");
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Chooses the padded sizes used by the convolutions. A linear convolution of M
+ * samples with an M samples kernel needs 2M - 1 samples to avoid wrap around,
+ * but JTransforms is much faster on lengths whose only prime factors are 2, 3,
+ * 5 and 7, so the planner rounds up to the next such length.
+ * <p>
+ * The pad factor trades accuracy for speed: a factor of 2 gives the alias free
+ * 2M - 1 bound, smaller factors give shorter transforms. Since only the central
+ * M samples of the convolution are kept, factors down to about 1.5 are still
+ * exact; below that the borders of the output pick up wrapped around energy.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public final class PaddingPlanner {
+
+    public static final float DEFAULT_PAD_FACTOR = 2;
+    public static final float MIN_PAD_FACTOR = 1;
+    public static final float MAX_PAD_FACTOR = 2;
+
+    private PaddingPlanner() {
+    }
+
+    /**
+     * Returns the padded length for n samples: the smallest 2, 3, 5, 7 smooth
+     * length not smaller than {@code ceil(padFactor * n) - 1} nor than n.
+     *
+     * @param n number of samples
+     * @param padFactor pad factor, between 1 and 2
+     * @return padded length
+     */
+    public static int paddedSize(int n, float padFactor) {
+        if (n < 1) {
+            throw new IllegalArgumentException("Size must be positive.");
+        }
+        if (!(padFactor >= MIN_PAD_FACTOR && padFactor <= MAX_PAD_FACTOR)) {
+            throw new IllegalArgumentException("Pad factor must be between "
+                    + MIN_PAD_FACTOR + " and " + MAX_PAD_FACTOR + ".");
+        }
+
+        int size = Math.max(n, (int) Math.ceil(padFactor * n) - 1);
+        while (!isSmooth(size)) {
+            size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * Returns whether n has no prime factors other than 2, 3, 5 and 7.
+     *
+     * @param n number to test
+     * @return true if n is 7-smooth
+     */
+    public static boolean isSmooth(int n) {
+        if (n < 1) {
+            return false;
+        }
+
+        for (int p = 2; p <= 7; p++) {
+            while (n % p == 0) {
+                n /= p;
+            }
+        }
+
+        return n == 1;
+    }
+}
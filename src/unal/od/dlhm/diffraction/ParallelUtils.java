@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.jtransforms.utils.ConcurrencyUtils;
+
+/**
+ * Helpers to split loops between threads. The threads come from the JTransforms
+ * pool, so the loops use the same number of threads as the FFTs.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public final class ParallelUtils {
+
+    private ParallelUtils() {
+    }
+
+    /**
+     * Body of a parallel loop. Each call processes the indices in
+     * {@code [start, end)}.
+     */
+    public static abstract class Loop {
+
+        public abstract void run(int start, int end);
+    }
+
+    /**
+     * Body of a parallel loop that needs to know which chunk it processes, for
+     * instance to pick a per-chunk buffer. Each call processes the indices in
+     * {@code [start, end)} of chunk {@code chunk}.
+     */
+    public static abstract class ChunkLoop {
+
+        public abstract void run(int chunk, int start, int end);
+    }
+
+    /**
+     * Returns the number of chunks {@code parallelFor} splits a range of n
+     * iterations in.
+     *
+     * @param n number of iterations
+     * @return number of chunks
+     */
+    public static int getNumberOfChunks(int n) {
+        return Math.max(1, Math.min(ConcurrencyUtils.getNumberOfThreads(), n));
+    }
+
+    /**
+     * Runs the loop over {@code [0, n)}, splitting the range in one contiguous
+     * chunk per thread. The calling thread processes the last chunk.
+     *
+     * @param n number of iterations
+     * @param loop loop body
+     */
+    public static void parallelFor(int n, final Loop loop) {
+        parallelFor(n, new ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                loop.run(start, end);
+            }
+        });
+    }
+
+    /**
+     * Runs the loop over {@code [0, n)}, splitting the range in
+     * {@code getNumberOfChunks(n)} contiguous chunks. The calling thread
+     * processes the last chunk.
+     * <p>
+     * Returns when every chunk is done. If a chunk fails, its exception is
+     * thrown once the other chunks end, a {@link RuntimeException} or an
+     * {@link Error} as it is and any other exception wrapped in an
+     * {@link IllegalStateException}. If the calling thread is interrupted
+     * while waiting, the chunks not started are cancelled, the interrupt flag
+     * is kept and an {@link IllegalStateException} is thrown.
+     *
+     * @param n number of iterations
+     * @param loop loop body
+     */
+    public static void parallelFor(int n, final ChunkLoop loop) {
+        int chunks = getNumberOfChunks(n);
+
+        if (chunks == 1) {
+            loop.run(0, 0, n);
+            return;
+        }
+
+        Future<?>[] futures = new Future<?>[chunks - 1];
+        int size = n / chunks;
+
+        for (int t = 0; t < chunks - 1; t++) {
+            final int chunk = t;
+            final int start = t * size;
+            final int end = start + size;
+
+            futures[t] = ConcurrencyUtils.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    loop.run(chunk, start, end);
+                }
+            });
+        }
+
+        Throwable failure = null;
+        try {
+            loop.run(chunks - 1, (chunks - 1) * size, n);
+        } catch (RuntimeException exc) {
+            failure = exc;
+        } catch (Error err) {
+            failure = err;
+        }
+
+        //the other chunks write to the same arrays, so they are always
+        //waited for before returning or throwing
+        for (int t = 0; t < futures.length; t++) {
+            try {
+                futures[t].get();
+            } catch (ExecutionException exc) {
+                if (failure == null) {
+                    failure = exc.getCause();
+                }
+            } catch (InterruptedException exc) {
+                for (int k = t; k < futures.length; k++) {
+                    futures[k].cancel(true);
+                }
+
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting "
+                        + "for the parallel loop.", exc);
+            }
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of propagator objects. Propagators are keyed by the
+ * geometry used to build them, so a reconstruction at an already used geometry
+ * skips the kernel calculation. The cache keeps the propagators in LRU order
+ * and evicts the least recently used ones when the memory taken by the kernels
+ * exceeds the memory budget.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class PropagatorCache {
+
+    private static final int KIRCHHOFF_HELMHOLTZ = 0;
+    private static final int BLUESTEIN_HIGH_NA = 1;
+    private static final int TRANSFER_FUNCTION = 2;
+    private static final int REMAP_TABLE = 3;
+    private static final int RESAMPLING = 4;
+
+    //by default a quarter of the maximum heap size is used for the kernels
+    private static final PropagatorCache INSTANCE
+            = new PropagatorCache(Runtime.getRuntime().maxMemory() / 4);
+
+    private final LinkedHashMap<Key, Object> propagators;
+    private final LinkedHashMap<Key, Long> sizes;
+
+    private long memoryBudget;
+    private long memoryUsage;
+
+    private int hits;
+    private int misses;
+
+    private PropagatorCache(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+
+        propagators = new LinkedHashMap<Key, Object>(16, 0.75f, true);
+        sizes = new LinkedHashMap<Key, Long>();
+    }
+
+    /**
+     * Returns the shared cache.
+     *
+     * @return cache instance
+     */
+    public static PropagatorCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns a Kirchhoff-Helmholtz propagator for the given geometry. If the
+     * propagator is not in the cache, it is created and stored.
+     *
+     * @param M size of the hologram
+     * @param N size of the hologram
+     * @param lambda wavelength
+     * @param z reconstruction distance
+     * @param L source to screen distance
+     * @param dx input pixel size
+     * @param dy input pixel size
+     * @param dxOut output pixel size
+     * @param dyOut output pixel size
+     * @return propagator
+     */
+    public KirchhoffHelmholtz getKirchhoffHelmholtz(int M, int N, float lambda,
+            float z, float L, float dx, float dy, float dxOut, float dyOut) {
+
+        return getKirchhoffHelmholtz(M, N, lambda, z, L, dx, dy, dxOut, dyOut,
+                PaddingPlanner.DEFAULT_PAD_FACTOR);
+    }
+
+    /**
+     * Returns a Kirchhoff-Helmholtz propagator for the given geometry and pad
+     * factor. If the propagator is not in the cache, it is created and stored.
+     *
+     * @param M size of the hologram
+     * @param N size of the hologram
+     * @param lambda wavelength
+     * @param z reconstruction distance
+     * @param L source to screen distance
+     * @param dx input pixel size
+     * @param dy input pixel size
+     * @param dxOut output pixel size
+     * @param dyOut output pixel size
+     * @param padFactor pad factor, see {@link PaddingPlanner}
+     * @return propagator
+     */
+    public KirchhoffHelmholtz getKirchhoffHelmholtz(int M, int N, float lambda,
+            float z, float L, float dx, float dy, float dxOut, float dyOut,
+            float padFactor) {
+
+        Key key = new Key(KIRCHHOFF_HELMHOLTZ, M, N, lambda, z, L, dx, dy,
+                dxOut, dyOut, padFactor);
+
+        KirchhoffHelmholtz propagator = (KirchhoffHelmholtz) get(key);
+        if (propagator == null) {
+            //the kernels are calculated outside the lock, so other threads
+            //can still use the cache meanwhile
+            TransferFunction transfer = getTransferFunction(M, N, lambda, L,
+                    dx, dy, dxOut, dyOut, padFactor);
+            propagator = new KirchhoffHelmholtz(transfer, z);
+            propagator.setCached();
+            put(key, propagator, propagator.getKernelsSize());
+        }
+
+        return propagator;
+    }
+
+    /**
+     * Returns a Kirchhoff-Helmholtz propagator for the distance z that shares
+     * the given transfer function. If the propagator is not in the cache, it is
+     * created and stored.
+     *
+     * @param transfer z independent part of the propagator
+     * @param z reconstruction distance
+     * @return propagator
+     */
+    public KirchhoffHelmholtz getKirchhoffHelmholtz(TransferFunction transfer,
+            float z) {
+
+        Key key = new Key(KIRCHHOFF_HELMHOLTZ, transfer.M, transfer.N,
+                transfer.lambda, z, transfer.L, transfer.dx, transfer.dy,
+                transfer.dxOut, transfer.dyOut, transfer.padFactor);
+
+        KirchhoffHelmholtz propagator = (KirchhoffHelmholtz) get(key);
+        if (propagator == null) {
+            propagator = new KirchhoffHelmholtz(transfer, z);
+            propagator.setCached();
+            put(key, propagator, propagator.getKernelsSize());
+        }
+
+        return propagator;
+    }
+
+    /**
+     * Returns the z independent part of a Kirchhoff-Helmholtz propagator. If
+     * the transfer function is not in the cache, it is created and stored.
+     *
+     * @param M size of the hologram
+     * @param N size of the hologram
+     * @param lambda wavelength
+     * @param L source to screen distance
+     * @param dx input pixel size
+     * @param dy input pixel size
+     * @param dxOut output pixel size
+     * @param dyOut output pixel size
+     * @return transfer function
+     */
+    public TransferFunction getTransferFunction(int M, int N, float lambda,
+            float L, float dx, float dy, float dxOut, float dyOut) {
+
+        return getTransferFunction(M, N, lambda, L, dx, dy, dxOut, dyOut,
+                PaddingPlanner.DEFAULT_PAD_FACTOR);
+    }
+
+    /**
+     * Returns the z independent part of a Kirchhoff-Helmholtz propagator for
+     * the given pad factor. If the transfer function is not in the cache, it
+     * is created and stored.
+     *
+     * @param M size of the hologram
+     * @param N size of the hologram
+     * @param lambda wavelength
+     * @param L source to screen distance
+     * @param dx input pixel size
+     * @param dy input pixel size
+     * @param dxOut output pixel size
+     * @param dyOut output pixel size
+     * @param padFactor pad factor, see {@link PaddingPlanner}
+     * @return transfer function
+     */
+    public TransferFunction getTransferFunction(int M, int N, float lambda,
+            float L, float dx, float dy, float dxOut, float dyOut,
+            float padFactor) {
+
+        Key key = new Key(TRANSFER_FUNCTION, M, N, lambda, 0, L, dx, dy,
+                dxOut, dyOut, padFactor);
+
+        TransferFunction transfer = (TransferFunction) get(key);
+        if (transfer == null) {
+            transfer = new TransferFunction(M, N, lambda, L, dx, dy, dxOut,
+                    dyOut, padFactor);
+            put(key, transfer, transfer.getKernelsSize());
+        }
+
+        return transfer;
+    }
+
+    /**
+     * Returns a Bluestein propagator for the given geometry. If the
+     * propagator is not in the cache, it is created and stored.
+     *
+     * @param M size of the sample
+     * @param N size of the sample
+     * @param lambda wavelength
+     * @param z source to sample distance
+     * @param L source to screen distance
+     * @param dx sample pixel size
+     * @param dy sample pixel size
+     * @param dxOut screen pixel size
+     * @param dyOut screen pixel size
+     * @return propagator
+     */
+    public BluesteinHighNA getBluesteinHighNA(int M, int N, float lambda,
+            float z, float L, float dx, float dy, float dxOut, float dyOut) {
+
+        return getBluesteinHighNA(M, N, lambda, z, L, dx, dy, dxOut, dyOut,
+                PaddingPlanner.DEFAULT_PAD_FACTOR);
+    }
+
+    /**
+     * Returns a Bluestein propagator for the given geometry and pad factor. If
+     * the propagator is not in the cache, it is created and stored.
+     *
+     * @param M size of the sample
+     * @param N size of the sample
+     * @param lambda wavelength
+     * @param z source to sample distance
+     * @param L source to screen distance
+     * @param dx sample pixel size
+     * @param dy sample pixel size
+     * @param dxOut screen pixel size
+     * @param dyOut screen pixel size
+     * @param padFactor pad factor, see {@link PaddingPlanner}
+     * @return propagator
+     */
+    public BluesteinHighNA getBluesteinHighNA(int M, int N, float lambda,
+            float z, float L, float dx, float dy, float dxOut, float dyOut,
+            float padFactor) {
+
+        Key key = new Key(BLUESTEIN_HIGH_NA, M, N, lambda, z, L, dx, dy,
+                dxOut, dyOut, padFactor);
+
+        BluesteinHighNA propagator = (BluesteinHighNA) get(key);
+        if (propagator == null) {
+            propagator = new BluesteinHighNA(M, N, lambda, z, L, dx, dy,
+                    dxOut, dyOut, padFactor);
+            put(key, propagator, propagator.getKernelsSize());
+        }
+
+        return propagator;
+    }
+
+    /**
+     * Returns the hologram remap table for the coordinates of the transfer
+     * function. The table only depends on the size, the source to screen
+     * distance and the input pixel size. If the table is not in the cache, it
+     * is created and stored.
+     *
+     * @param transfer transfer function
+     * @return remap table
+     */
+    public RemapTable getRemapTable(TransferFunction transfer) {
+        Key key = new Key(REMAP_TABLE, transfer.M, transfer.N, 0, 0,
+                transfer.L, transfer.dx, transfer.dy, 0, 0, 0);
+
+        RemapTable table = (RemapTable) get(key);
+        if (table == null) {
+            table = new RemapTable(transfer);
+            put(key, table, table.getSize());
+        }
+
+        return table;
+    }
+
+    /**
+     * Returns the screen resampling operator used by
+     * {@link BluesteinHighNA#interpolate(float[])}. The operator only depends
+     * on the size, the sample to screen distance and the screen pixel size. If
+     * the operator is not in the cache, it is created and stored.
+     *
+     * @param propagator Bluestein propagator
+     * @return resampling operator
+     */
+    public ResamplingOperator getResamplingOperator(BluesteinHighNA propagator) {
+        Key key = new Key(RESAMPLING, propagator.M, propagator.N, 0,
+                propagator.z, 0, 0, 0, propagator.dxOut, propagator.dyOut, 0);
+
+        ResamplingOperator operator = (ResamplingOperator) get(key);
+        if (operator == null) {
+            operator = propagator.createResampling();
+            put(key, operator, operator.getSize());
+        }
+
+        return operator;
+    }
+
+    private synchronized Object get(Key key) {
+        Object propagator = propagators.get(key);
+
+        if (propagator == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return propagator;
+    }
+
+    private synchronized void put(Key key, Object propagator, long size) {
+        //propagators bigger than the whole budget are not stored
+        if (size > memoryBudget || propagators.containsKey(key)) {
+            return;
+        }
+
+        propagators.put(key, propagator);
+        sizes.put(key, size);
+        memoryUsage += size;
+
+        evict();
+    }
+
+    /**
+     * Removes the least recently used propagators until the memory usage is
+     * within the budget.
+     */
+    private void evict() {
+        Iterator<Map.Entry<Key, Object>> it = propagators.entrySet().iterator();
+
+        while (memoryUsage > memoryBudget && it.hasNext()) {
+            Key key = it.next().getKey();
+            it.remove();
+            memoryUsage -= sizes.remove(key);
+        }
+    }
+
+    /**
+     * Sets the maximum memory, in bytes, used by the cached kernels.
+     *
+     * @param memoryBudget budget in bytes
+     */
+    public synchronized void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        evict();
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Returns the memory, in bytes, used by the cached kernels.
+     *
+     * @return memory usage
+     */
+    public synchronized long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Removes all the propagators from the cache.
+     */
+    public synchronized void clear() {
+        propagators.clear();
+        sizes.clear();
+        memoryUsage = 0;
+    }
+
+    private static class Key {
+
+        private final int type;
+        private final int M, N;
+        private final float lambda, z, L, dx, dy, dxOut, dyOut, padFactor;
+
+        Key(int type, int M, int N, float lambda, float z, float L, float dx,
+                float dy, float dxOut, float dyOut, float padFactor) {
+
+            this.type = type;
+            this.M = M;
+            this.N = N;
+            this.lambda = lambda;
+            this.z = z;
+            this.L = L;
+            this.dx = dx;
+            this.dy = dy;
+            this.dxOut = dxOut;
+            this.dyOut = dyOut;
+            this.padFactor = padFactor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) o;
+            return type == k.type && M == k.M && N == k.N
+                    && Float.floatToIntBits(lambda) == Float.floatToIntBits(k.lambda)
+                    && Float.floatToIntBits(z) == Float.floatToIntBits(k.z)
+                    && Float.floatToIntBits(L) == Float.floatToIntBits(k.L)
+                    && Float.floatToIntBits(dx) == Float.floatToIntBits(k.dx)
+                    && Float.floatToIntBits(dy) == Float.floatToIntBits(k.dy)
+                    && Float.floatToIntBits(dxOut) == Float.floatToIntBits(k.dxOut)
+                    && Float.floatToIntBits(dyOut) == Float.floatToIntBits(k.dyOut)
+                    && Float.floatToIntBits(padFactor) == Float.floatToIntBits(k.padFactor);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = type;
+            h = 31 * h + M;
+            h = 31 * h + N;
+            h = 31 * h + Float.floatToIntBits(lambda);
+            h = 31 * h + Float.floatToIntBits(z);
+            h = 31 * h + Float.floatToIntBits(L);
+            h = 31 * h + Float.floatToIntBits(dx);
+            h = 31 * h + Float.floatToIntBits(dy);
+            h = 31 * h + Float.floatToIntBits(dxOut);
+            h = 31 * h + Float.floatToIntBits(dyOut);
+            h = 31 * h + Float.floatToIntBits(padFactor);
+            return h;
+        }
+    }
+}
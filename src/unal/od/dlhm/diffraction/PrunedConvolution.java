@@ -0,0 +1,531 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Arrays;
+import org.jtransforms.fft.FloatFFT_1D;
+import pl.edu.icm.jlargearrays.FloatLargeArray;
+
+/**
+ * Circular convolution of a M x N complex field with a kernel given in the
+ * frequency domain of the P x Q padded field, keeping the central M x N part
+ * of the shifted result. It gives the same result as padding the field,
+ * running a 2D FFT, multiplying by the kernel, running the inverse 2D FFT,
+ * shifting and unpadding, but the 2D transforms are split into 1D passes that
+ * skip the work on zeros and on discarded samples:
+ * <ul>
+ * <li>the forward row FFTs only run on the N rows holding the field,</li>
+ * <li>each column is transformed, multiplied by the kernel and transformed
+ * back in one pass, and only the N rows that survive the unpad are kept,</li>
+ * <li>the inverse row FFTs only run on those N rows, and the shift and unpad
+ * are done while copying the result back.</li>
+ * </ul>
+ * Rows follow the {@link ComplexField} layout, so they are contiguous. The
+ * padded field is never allocated, the work array has P x N complex elements
+ * and is taken from a {@link Workspace}.
+ * <p>
+ * Several fields can be convolved with the same kernel in one call. Their rows
+ * are transformed by the same parallel loops, and each column of the kernel is
+ * applied to the matching column of every field before moving to the next one,
+ * so the kernel is read once per call.
+ * <p>
+ * With a large-field {@link Workspace} the work array is kept in native memory
+ * and indexed with longs. The row FFTs then run on one heap buffer per thread,
+ * and the results are the same as with the heap work array.
+ * <p>
+ * With an out-of-core {@link Workspace} the work array is a scratch file. The
+ * rows are passed through the same heap row buffers, and the column pass
+ * reads tiles of {@code TILE_WIDTH} columns, so every file access is a run
+ * of 4 KB. The results are the same as well.
+ * <p>
+ * The field and the kernel are placed at the start of the padded arrays, and
+ * the shift is applied when the output is read. The padded sizes are usually
+ * chosen with {@link PaddingPlanner}; any size not smaller than the field is
+ * accepted.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class PrunedConvolution {
+
+    //columns per tile of the out-of-core column pass
+    private static final int TILE_WIDTH = 512;
+
+    private final int M, N, P, Q;
+    private final FloatFFT_1D rowFft, columnFft;
+
+    //padded column and row of the first output sample, shift included
+    private final int iOut, jOut;
+
+    /**
+     * Creates a convolution of M x N fields padded to 2M x 2N.
+     *
+     * @param M width of the field
+     * @param N height of the field
+     */
+    public PrunedConvolution(int M, int N) {
+        this(M, N, 2 * M, 2 * N);
+    }
+
+    /**
+     * Creates a convolution of M x N fields padded to P x Q.
+     *
+     * @param M width of the field
+     * @param N height of the field
+     * @param P padded width, at least M
+     * @param Q padded height, at least N
+     */
+    public PrunedConvolution(int M, int N, int P, int Q) {
+        if (P < M || Q < N) {
+            throw new IllegalArgumentException("Padded size must be at least " + M + " x " + N + ".");
+        }
+
+        this.M = M;
+        this.N = N;
+        this.P = P;
+        this.Q = Q;
+
+        //the plans are shared with the other convolutions of the same size
+        rowFft = FftPlanCache.getInstance().getFloatFFT_1D(P);
+        columnFft = FftPlanCache.getInstance().getFloatFFT_1D(Q);
+
+        iOut = (M - M / 2) % P;
+        jOut = (N - N / 2) % Q;
+    }
+
+    /**
+     * Convolves the field with a dense kernel. The result is stored in field.
+     *
+     * @param field M x N field
+     * @param kernel transformed kernel, P x Q complex elements stored by
+     * padded column: the element of column p and row q is at
+     * {@code 2 * (p * Q + q)}
+     * @param workspace work buffers
+     */
+    public void convolve(ComplexField field, float[] kernel,
+            Workspace workspace) {
+        convolve(new ComplexField[]{field}, kernel, workspace);
+    }
+
+    /**
+     * Convolves every field with a dense kernel. The results are stored in
+     * the fields.
+     *
+     * @param fields M x N fields
+     * @param kernel transformed kernel, see
+     * {@link #convolve(ComplexField, float[], Workspace)}
+     * @param workspace work buffers
+     */
+    public void convolve(ComplexField[] fields, float[] kernel,
+            Workspace workspace) {
+        if (kernel.length != 2 * P * Q) {
+            throw new IllegalArgumentException("Kernel must have " + 2 * P * Q + " elements.");
+        }
+
+        convolve(fields, kernel, null, null, workspace);
+    }
+
+    /**
+     * Convolves the field with a separable kernel, given as the outer product
+     * of a column factor and a row factor. The result is stored in field.
+     *
+     * @param field M x N field
+     * @param kernelX transformed factor along x, P complex elements
+     * @param kernelY transformed factor along y, Q complex elements
+     * @param workspace work buffers
+     */
+    public void convolve(ComplexField field, float[] kernelX, float[] kernelY,
+            Workspace workspace) {
+        convolve(new ComplexField[]{field}, kernelX, kernelY, workspace);
+    }
+
+    /**
+     * Convolves every field with a separable kernel. The results are stored
+     * in the fields.
+     *
+     * @param fields M x N fields
+     * @param kernelX transformed factor along x, P complex elements
+     * @param kernelY transformed factor along y, Q complex elements
+     * @param workspace work buffers
+     */
+    public void convolve(ComplexField[] fields, float[] kernelX,
+            float[] kernelY, Workspace workspace) {
+        if (kernelX.length != 2 * P || kernelY.length != 2 * Q) {
+            throw new IllegalArgumentException("Kernel factors must have " + 2 * P + " and " + 2 * Q + " elements.");
+        }
+
+        convolve(fields, null, kernelX, kernelY, workspace);
+    }
+
+    private void convolve(ComplexField[] fields, final float[] kernel,
+            final float[] kernelX, final float[] kernelY, Workspace workspace) {
+
+        final int F = fields.length;
+        final float[][] data = new float[F][];
+
+        for (int f = 0; f < F; f++) {
+            if (M != fields[f].getWidth() || N != fields[f].getHeight()) {
+                throw new IllegalArgumentException("Field dimension must be " + M + " x " + N + ".");
+            }
+            data[f] = fields[f].getData();
+        }
+
+        if (workspace.isOutOfCore()) {
+            convolveOutOfCore(data, kernel, kernelX, kernelY, workspace);
+            return;
+        }
+
+        if (workspace.isLargeField()) {
+            convolveLarge(data, kernel, kernelX, kernelY, workspace);
+            return;
+        }
+
+        //N rows per field, row j of field f is row f * N + j
+        final float[] rows = workspace.getRows(P, F * N);
+        final float[][] columns = workspace.getColumns(
+                ParallelUtils.getNumberOfChunks(P), Q);
+
+        //forward transform of the non zero rows
+        ParallelUtils.parallelFor(F * N, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int r = start; r < end; r++) {
+                    int offset = 2 * P * r;
+
+                    //the buffer is reused, so the padding is cleared
+                    System.arraycopy(data[r / N], 2 * M * (r % N), rows, offset, 2 * M);
+                    Arrays.fill(rows, offset + 2 * M, offset + 2 * P, 0);
+
+                    rowFft.complexForward(rows, offset);
+                }
+            }
+        });
+
+        //column transforms, product and inverse column transforms
+        ParallelUtils.parallelFor(P, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                float[] column = columns[chunk];
+
+                for (int p = start; p < end; p++) {
+                    for (int f = 0, r0 = 0; f < F; f++, r0 += N) {
+                        for (int j = 0, r = r0; j < N; j++, r++) {
+                            column[2 * j] = rows[2 * P * r + 2 * p];
+                            column[2 * j + 1] = rows[2 * P * r + 2 * p + 1];
+                        }
+                        Arrays.fill(column, 2 * N, 2 * Q, 0);
+
+                        columnFft.complexForward(column);
+
+                        if (kernel != null) {
+                            multiplyColumn(column, kernel, 2 * Q * p);
+                        } else {
+                            multiplyColumn(column, kernelY, kernelX[2 * p],
+                                    kernelX[2 * p + 1]);
+                        }
+
+                        columnFft.complexInverse(column, true);
+
+                        for (int j = 0, j2 = jOut, r = r0; j < N; j++, j2++, r++) {
+                            if (j2 == Q) {
+                                j2 = 0;
+                            }
+                            rows[2 * P * r + 2 * p] = column[2 * j2];
+                            rows[2 * P * r + 2 * p + 1] = column[2 * j2 + 1];
+                        }
+                    }
+                }
+            }
+        });
+
+        //inverse transform of the surviving rows, shift and unpad
+        ParallelUtils.parallelFor(F * N, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int r = start; r < end; r++) {
+                    int offset = 2 * P * r;
+                    rowFft.complexInverse(rows, offset, true);
+
+                    float[] out = data[r / N];
+                    int j = r % N;
+
+                    int m = P - iOut;
+                    if (m >= M) {
+                        System.arraycopy(rows, offset + 2 * iOut, out, 2 * M * j, 2 * M);
+                    } else {
+                        System.arraycopy(rows, offset + 2 * iOut, out, 2 * M * j, 2 * m);
+                        System.arraycopy(rows, offset, out, 2 * (M * j + m), 2 * (M - m));
+                    }
+                }
+            }
+        });
+    }
+
+    private void convolveLarge(final float[][] data, final float[] kernel,
+            final float[] kernelX, final float[] kernelY, Workspace workspace) {
+
+        final int F = data.length;
+
+        //row r starts at 2 * P * r, with r = f * N + j
+        final FloatLargeArray rows = workspace.getLargeRows(P, F * N);
+        final float[][] rowBuffers = workspace.getRowBuffers(
+                ParallelUtils.getNumberOfChunks(F * N), P);
+        final float[][] columns = workspace.getColumns(
+                ParallelUtils.getNumberOfChunks(P), Q);
+
+        //forward transform of the non zero rows
+        ParallelUtils.parallelFor(F * N, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                float[] row = rowBuffers[chunk];
+
+                for (int r = start; r < end; r++) {
+                    System.arraycopy(data[r / N], 2 * M * (r % N), row, 0, 2 * M);
+                    Arrays.fill(row, 2 * M, 2 * P, 0);
+
+                    rowFft.complexForward(row);
+
+                    long offset = 2L * P * r;
+                    for (int i = 0; i < 2 * P; i++) {
+                        rows.setFloat(offset + i, row[i]);
+                    }
+                }
+            }
+        });
+
+        //column transforms, product and inverse column transforms
+        ParallelUtils.parallelFor(P, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                float[] column = columns[chunk];
+
+                for (int p = start; p < end; p++) {
+                    for (int f = 0; f < F; f++) {
+                        long offset = 2L * P * N * f + 2 * p;
+
+                        for (int j = 0; j < N; j++) {
+                            column[2 * j] = rows.getFloat(offset + 2L * P * j);
+                            column[2 * j + 1] = rows.getFloat(offset + 2L * P * j + 1);
+                        }
+                        Arrays.fill(column, 2 * N, 2 * Q, 0);
+
+                        columnFft.complexForward(column);
+
+                        if (kernel != null) {
+                            multiplyColumn(column, kernel, 2 * Q * p);
+                        } else {
+                            multiplyColumn(column, kernelY, kernelX[2 * p],
+                                    kernelX[2 * p + 1]);
+                        }
+
+                        columnFft.complexInverse(column, true);
+
+                        for (int j = 0, j2 = jOut; j < N; j++, j2++) {
+                            if (j2 == Q) {
+                                j2 = 0;
+                            }
+                            rows.setFloat(offset + 2L * P * j, column[2 * j2]);
+                            rows.setFloat(offset + 2L * P * j + 1, column[2 * j2 + 1]);
+                        }
+                    }
+                }
+            }
+        });
+
+        //inverse transform of the surviving rows, shift and unpad
+        ParallelUtils.parallelFor(F * N, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                float[] row = rowBuffers[chunk];
+
+                for (int r = start; r < end; r++) {
+                    long offset = 2L * P * r;
+                    for (int i = 0; i < 2 * P; i++) {
+                        row[i] = rows.getFloat(offset + i);
+                    }
+
+                    rowFft.complexInverse(row, true);
+
+                    float[] out = data[r / N];
+                    int j = r % N;
+
+                    int m = P - iOut;
+                    if (m >= M) {
+                        System.arraycopy(row, 2 * iOut, out, 2 * M * j, 2 * M);
+                    } else {
+                        System.arraycopy(row, 2 * iOut, out, 2 * M * j, 2 * m);
+                        System.arraycopy(row, 0, out, 2 * (M * j + m), 2 * (M - m));
+                    }
+                }
+            }
+        });
+    }
+
+    private void convolveOutOfCore(final float[][] data, final float[] kernel,
+            final float[] kernelX, final float[] kernelY, Workspace workspace) {
+
+        final int F = data.length;
+        final int T = Math.min(TILE_WIDTH, P);
+        final int tiles = (P + T - 1) / T;
+
+        //row r of the file is row j of field f, with r = f * N + j
+        final MappedRows rows = workspace.getMappedRows(P, F * N);
+        final float[][] rowBuffers = workspace.getRowBuffers(
+                ParallelUtils.getNumberOfChunks(F * N), P);
+        final float[][] tileBuffers = workspace.getTiles(
+                ParallelUtils.getNumberOfChunks(tiles), T, N);
+        final float[][] columns = workspace.getColumns(
+                ParallelUtils.getNumberOfChunks(tiles), Q);
+
+        //forward transform of the non zero rows
+        ParallelUtils.parallelFor(F * N, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                float[] row = rowBuffers[chunk];
+
+                for (int r = start; r < end; r++) {
+                    System.arraycopy(data[r / N], 2 * M * (r % N), row, 0, 2 * M);
+                    Arrays.fill(row, 2 * M, 2 * P, 0);
+
+                    rowFft.complexForward(row);
+
+                    rows.put(r, 0, row, 0, 2 * P);
+                }
+            }
+        });
+
+        //column transforms, product and inverse column transforms, one tile
+        //of columns at a time
+        ParallelUtils.parallelFor(tiles, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                float[] tile = tileBuffers[chunk];
+                float[] column = columns[chunk];
+
+                for (int t = start; t < end; t++) {
+                    int p0 = t * T;
+                    int w = Math.min(T, P - p0);
+
+                    for (int f = 0, r0 = 0; f < F; f++, r0 += N) {
+                        for (int j = 0; j < N; j++) {
+                            rows.get(r0 + j, 2 * p0, tile, 2 * w * j, 2 * w);
+                        }
+
+                        for (int c = 0, p = p0; c < w; c++, p++) {
+                            for (int j = 0; j < N; j++) {
+                                column[2 * j] = tile[2 * (w * j + c)];
+                                column[2 * j + 1] = tile[2 * (w * j + c) + 1];
+                            }
+                            Arrays.fill(column, 2 * N, 2 * Q, 0);
+
+                            columnFft.complexForward(column);
+
+                            if (kernel != null) {
+                                multiplyColumn(column, kernel, 2 * Q * p);
+                            } else {
+                                multiplyColumn(column, kernelY, kernelX[2 * p],
+                                        kernelX[2 * p + 1]);
+                            }
+
+                            columnFft.complexInverse(column, true);
+
+                            for (int j = 0, j2 = jOut; j < N; j++, j2++) {
+                                if (j2 == Q) {
+                                    j2 = 0;
+                                }
+                                tile[2 * (w * j + c)] = column[2 * j2];
+                                tile[2 * (w * j + c) + 1] = column[2 * j2 + 1];
+                            }
+                        }
+
+                        for (int j = 0; j < N; j++) {
+                            rows.put(r0 + j, 2 * p0, tile, 2 * w * j, 2 * w);
+                        }
+                    }
+                }
+            }
+        });
+
+        //inverse transform of the surviving rows, shift and unpad
+        ParallelUtils.parallelFor(F * N, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                float[] row = rowBuffers[chunk];
+
+                for (int r = start; r < end; r++) {
+                    rows.get(r, 0, row, 0, 2 * P);
+
+                    rowFft.complexInverse(row, true);
+
+                    float[] out = data[r / N];
+                    int j = r % N;
+
+                    int m = P - iOut;
+                    if (m >= M) {
+                        System.arraycopy(row, 2 * iOut, out, 2 * M * j, 2 * M);
+                    } else {
+                        System.arraycopy(row, 2 * iOut, out, 2 * M * j, 2 * m);
+                        System.arraycopy(row, 0, out, 2 * (M * j + m), 2 * (M - m));
+                    }
+                }
+            }
+        });
+    }
+
+    private static void multiplyColumn(float[] column, float[] kernel,
+            int offset) {
+
+        for (int q = 0; q < column.length / 2; q++) {
+            float kr = kernel[offset + 2 * q];
+            float ki = kernel[offset + 2 * q + 1];
+
+            float re = column[2 * q];
+            float im = column[2 * q + 1];
+
+            column[2 * q] = re * kr - im * ki;
+            column[2 * q + 1] = re * ki + im * kr;
+        }
+    }
+
+    private static void multiplyColumn(float[] column, float[] kernelY,
+            float xr, float xi) {
+
+        for (int q = 0; q < column.length / 2; q++) {
+            float yr = kernelY[2 * q];
+            float yi = kernelY[2 * q + 1];
+
+            float kr = xr * yr - xi * yi;
+            float ki = xr * yi + xi * yr;
+
+            float re = column[2 * q];
+            float im = column[2 * q + 1];
+
+            column[2 * q] = re * kr - im * ki;
+            column[2 * q + 1] = re * ki + im * kr;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Evaluation of the {@link KirchhoffHelmholtz} output on a W x H region of the
+ * reconstruction plane, with its own pixel size. Once the field is multiplied
+ * by {@code kernel1}, the chirps of {@code kernel2} and of the output phase
+ * cancel and the output is a separable Fourier-type sum
+ * <pre>
+ * U(x, y) = dX dY sum g(m, n) exp(-i k (m dX x + n dY y) / L)
+ * </pre>
+ * so any grid of x and y can be evaluated with two passes of 1D chirp-z
+ * transforms: one per row of the field, giving W x N samples, and one per
+ * column of that result. The padded field is never transformed, and the
+ * column pass only runs on the W columns of the region.
+ * <p>
+ * The region uses the coordinates of the full reconstruction, where pixel
+ * {@code i} is at {@code (i - (M - 1) / 2) dxOut}. The pruned convolution
+ * keeps its output one sample away from the center of the chirps, and that
+ * shift and the phase tilt it leaves are applied here too.
+ * <p>
+ * The padded convolution only holds M samples of the {@code kernel2} chirp,
+ * so each output pixel of the full reconstruction only adds the hologram
+ * samples within half a field of it. A region on the pixel grid of the full
+ * reconstruction applies the same window to the chirp-z sums and is a crop
+ * of it, as long as the pad factor keeps the convolution free of wrap around.
+ * A region with its own pixel size cannot follow the window, which moves
+ * with each output pixel, and adds every hologram sample as the direct sum
+ * does. It only agrees with the full reconstruction where the half-field
+ * window covers every non-zero sample of the field, for a hologram filling
+ * the plane it differs by 10 to 30 percent in relative L2 from the center to
+ * the corners.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class RegionTransform {
+
+    final TransferFunction transfer;
+    private final int W, H;
+    private final ChirpZ rowTransform, columnTransform;
+
+    /**
+     * Creates the transform for a crop of the full reconstruction. Its values
+     * are the ones of the same pixels of the full plane.
+     *
+     * @param transfer transfer function of the propagator
+     * @param x first column of the crop
+     * @param y first row of the crop
+     * @param W width of the region
+     * @param H height of the region
+     */
+    public RegionTransform(TransferFunction transfer, int x, int y, int W,
+            int H) {
+        //the full plane adds the samples i with x + u - i in
+        //[-(M - M / 2), M / 2 - 1], the shift of the pruned convolution
+        this(transfer, (x - (transfer.M - 1) / 2) * transfer.dxOut,
+                (y - (transfer.N - 1) / 2) * transfer.dyOut, W, H,
+                transfer.dxOut, transfer.dyOut,
+                -(transfer.M - transfer.M / 2) - x, transfer.M / 2 - 1 - x,
+                -(transfer.N - transfer.N / 2) - y, transfer.N / 2 - 1 - y);
+    }
+
+    /**
+     * Creates the transform for a region of the output plane. The output
+     * coordinates are measured from the optical axis, the center pixel of a
+     * full reconstruction is at 0. Every hologram sample is added to each
+     * output pixel.
+     *
+     * @param transfer transfer function of the propagator
+     * @param xStart x coordinate of the first output column
+     * @param yStart y coordinate of the first output row
+     * @param W width of the region
+     * @param H height of the region
+     * @param dxRegion output pixel size
+     * @param dyRegion output pixel size
+     */
+    public RegionTransform(TransferFunction transfer, float xStart,
+            float yStart, int W, int H, float dxRegion, float dyRegion) {
+        this(transfer, xStart, yStart, W, H, dxRegion, dyRegion,
+                -(transfer.M - 1), W - 1, -(transfer.N - 1), H - 1);
+    }
+
+    /**
+     * Creates the transform adding, to output column u, the field columns i
+     * with u - i in [uFrom, uTo], and the same for the rows.
+     */
+    private RegionTransform(TransferFunction transfer, float xStart,
+            float yStart, int W, int H, float dxRegion, float dyRegion,
+            int uFrom, int uTo, int vFrom, int vTo) {
+
+        if (W < 1 || H < 1) {
+            throw new IllegalArgumentException("Region size must be positive.");
+        }
+
+        this.transfer = transfer;
+        this.W = W;
+        this.H = H;
+
+        int M = transfer.M;
+        int N = transfer.N;
+
+        double k = 2 * Math.PI / transfer.lambda;
+        double alpha = k * transfer.dX / transfer.L;
+        double beta = k * transfer.dY / transfer.L;
+
+        //shift of the pruned convolution output
+        int dx = (M - M / 2) - (M - 1) / 2;
+        int dy = (N - N / 2) - (N - 1) / 2;
+
+        double x0 = xStart + dx * transfer.dxOut;
+        double y0 = yStart + dy * transfer.dyOut;
+
+        //the quadratic terms undo the chirp kernel1 carries for kernel2
+        rowTransform = new ChirpZ(M, (M - 1) / 2, W, uFrom, uTo,
+                alpha * transfer.dxOut / 2, -alpha * x0, alpha * dxRegion,
+                alpha * dx * dxRegion,
+                alpha * dx * (xStart + dx * transfer.dxOut / 2),
+                transfer.dX * transfer.dY);
+        columnTransform = new ChirpZ(N, (N - 1) / 2, H, vFrom, vTo,
+                beta * transfer.dyOut / 2, -beta * y0, beta * dyRegion,
+                beta * dy * dyRegion,
+                beta * dy * (yStart + dy * transfer.dyOut / 2), 1);
+    }
+
+    public int getWidth() {
+        return W;
+    }
+
+    public int getHeight() {
+        return H;
+    }
+
+    /**
+     * Evaluates the region from a field already multiplied by
+     * {@code kernel1}.
+     *
+     * @param field M x N field
+     * @return W x H output
+     */
+    ComplexField apply(ComplexField field) {
+        final int M = transfer.M;
+        final int N = transfer.N;
+
+        final float[] data = field.getData();
+        final float[] rows = new float[2 * W * N];
+
+        ComplexField region = new ComplexField(W, H);
+        final float[] out = region.getData();
+
+        final float[][] rowWork = new float[ParallelUtils.getNumberOfChunks(N)][2 * rowTransform.length];
+
+        //one transform per row, W x N samples
+        ParallelUtils.parallelFor(N, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                for (int j = start; j < end; j++) {
+                    rowTransform.transform(data, 2 * M * j, 1, rows, 2 * W * j,
+                            1, rowWork[chunk]);
+                }
+            }
+        });
+
+        final float[][] columnWork = new float[ParallelUtils.getNumberOfChunks(W)][2 * columnTransform.length];
+
+        //one transform per column of the intermediate result
+        ParallelUtils.parallelFor(W, new ParallelUtils.ChunkLoop() {
+
+            @Override
+            public void run(int chunk, int start, int end) {
+                for (int u = start; u < end; u++) {
+                    columnTransform.transform(rows, 2 * u, W, out, 2 * u, W,
+                            columnWork[chunk]);
+                }
+            }
+        });
+
+        return region;
+    }
+
+    /**
+     * Returns the memory, in bytes, taken by the transform factors.
+     *
+     * @return size
+     */
+    public long getSize() {
+        return rowTransform.getSize() + columnTransform.getSize();
+    }
+}
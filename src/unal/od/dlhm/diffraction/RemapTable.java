@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Precomputed remapping of a hologram onto the transformed coordinates used
+ * by {@link KirchhoffHelmholtz}. The source pixel and the bilinear weights of
+ * every output pixel only depend on the size, the source to screen distance
+ * and the pixel size, so they are calculated once per geometry and each
+ * hologram is then remapped by a gather pass over the table.
+ * <p>
+ * The mapping is symmetric, so only the quadrant of the first (M + 1) / 2
+ * columns and (N + 1) / 2 rows is stored, and each entry is applied to the
+ * four mirrored pixels.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class RemapTable {
+
+    private final int M, N;
+    //size of the stored quadrant
+    private final int M2, N2;
+
+    //source column and row of each entry, -1 if the entry is out of bounds
+    private final int[] source;
+    //x1 and y1 weights of each entry, x2 = 1 - x1 and y2 = 1 - y1
+    private final float[] weights;
+
+    /**
+     * Creates the table for the coordinates of the transfer function.
+     *
+     * @param transfer transfer function
+     */
+    RemapTable(TransferFunction transfer) {
+        M = transfer.M;
+        N = transfer.N;
+
+        //odd sizes also remap the central column and row
+        M2 = (M + 1) / 2;
+        N2 = (N + 1) / 2;
+
+        source = new int[2 * M2 * N2];
+        weights = new float[2 * M2 * N2];
+
+        calculateTable(transfer.L, transfer.dx, transfer.dy, transfer.xo,
+                transfer.yo, transfer.Xo, transfer.Yo, transfer.dX,
+                transfer.dY);
+    }
+
+    private void calculateTable(final float L, final float dx, final float dy,
+            final float xo, final float yo, final float Xo, final float Yo,
+            final float dX, final float dY) {
+
+        final float L2 = L * L;
+
+        ParallelUtils.parallelFor(N2, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int j = start; j < end; j++) {
+                    for (int i = 0, t = 2 * j * M2; i < M2; i++, t += 2) {
+
+                        float X = Xo + i * dX;
+                        float Y = Yo + j * dY;
+
+                        float R = (float) (1.0f / Math.sqrt(L2 - X * X - Y * Y));
+
+                        float newX = X * L * R;
+                        float newY = Y * L * R;
+
+                        float xc = (newX - xo) / dx;
+                        float yc = (newY - yo) / dy;
+
+                        int ixc = (int) Math.floor(xc);
+                        int iyc = (int) Math.floor(yc);
+
+                        if (ixc > 0 && ixc < M2 && iyc > 0 && iyc < N2) {
+                            source[t] = ixc;
+                            source[t + 1] = iyc;
+                            weights[t] = ixc + 1.0f - xc;
+                            weights[t + 1] = iyc + 1.0f - yc;
+                        } else {
+                            source[t] = -1;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Remaps the hologram into the real part of the field. Out of bounds
+     * pixels are left untouched.
+     *
+     * @param holo M x N hologram
+     * @param field M x N field
+     */
+    public void apply(final float[][] holo, ComplexField field) {
+        if (M != holo.length || N != holo[0].length) {
+            throw new IllegalArgumentException("Array dimension must be " + M + " x " + N + ".");
+        }
+        if (M != field.getWidth() || N != field.getHeight()) {
+            throw new IllegalArgumentException("Field dimension must be " + M + " x " + N + ".");
+        }
+
+        final float[] out = field.getData();
+
+        final int endM = M - 1;
+        final int endN = N - 1;
+
+        //each row of the quadrant writes its own row and its mirror
+        ParallelUtils.parallelFor(N2, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int j = start; j < end; j++) {
+                    int row = 2 * j * M;
+                    int mirrorRow = 2 * (endN - j) * M;
+
+                    for (int i = 0, t = 2 * j * M2; i < M2; i++, t += 2) {
+                        int ixc = source[t];
+                        if (ixc < 0) {
+                            continue;
+                        }
+                        int iyc = source[t + 1];
+
+                        float x1frac = weights[t];
+                        float x2frac = 1.0f - x1frac;
+                        float y1frac = weights[t + 1];
+                        float y2frac = 1.0f - y1frac;
+
+                        float x1y1 = x1frac * y1frac;
+                        float x1y2 = x1frac * y2frac;
+                        float x2y1 = x2frac * y1frac;
+                        float x2y2 = x2frac * y2frac;
+
+                        float[] c1 = holo[ixc];
+                        float[] c2 = holo[ixc + 1];
+                        float[] c3 = holo[endM - ixc];
+                        float[] c4 = holo[endM - (ixc + 1)];
+
+                        out[row + 2 * i] = x1y1 * c1[iyc]
+                                + x2y1 * c2[iyc]
+                                + x1y2 * c1[iyc + 1]
+                                + x2y2 * c2[iyc + 1];
+
+                        out[row + 2 * (endM - i)] = x1y1 * c3[iyc]
+                                + x2y1 * c4[iyc]
+                                + x1y2 * c3[iyc + 1]
+                                + x2y2 * c4[iyc + 1];
+
+                        out[mirrorRow + 2 * i] = x1y1 * c1[endN - iyc]
+                                + x2y1 * c2[endN - iyc]
+                                + x1y2 * c1[endN - (iyc + 1)]
+                                + x2y2 * c2[endN - (iyc + 1)];
+
+                        out[mirrorRow + 2 * (endM - i)] = x1y1 * c3[endN - iyc]
+                                + x2y1 * c4[endN - iyc]
+                                + x1y2 * c3[endN - (iyc + 1)]
+                                + x2y2 * c4[endN - (iyc + 1)];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the memory, in bytes, taken by the table.
+     *
+     * @return table size
+     */
+    public long getSize() {
+        return 4L * (source.length + weights.length);
+    }
+}
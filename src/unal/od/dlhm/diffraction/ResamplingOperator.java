@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Sparse linear resampling of an image, stored in compressed sparse row
+ * form: output pixel o is the sum of {@code weights[p] * in[sources[p]]} for
+ * p in {@code [rows[o], rows[o + 1])}. A forward scatter, where every source
+ * pixel adds its contributions to the output, can not run in parallel because
+ * the writes race; written as rows of the output it becomes a gather in which
+ * every output pixel is written by one thread only.
+ * <p>
+ * The entries of each row are kept in the order the scatter would add them,
+ * so the result is identical to the serial scatter.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class ResamplingOperator {
+
+    private final int inputLength, outputLength;
+
+    private final int[] rows;
+    private final int[] sources;
+    private final float[] weights;
+
+    /**
+     * Creates the operator from its CSR arrays.
+     *
+     * @param inputLength number of input pixels
+     * @param rows start of each output row, outputLength + 1 elements
+     * @param sources input pixel of each entry
+     * @param weights weight of each entry
+     */
+    ResamplingOperator(int inputLength, int[] rows, int[] sources,
+            float[] weights) {
+
+        this.inputLength = inputLength;
+        this.outputLength = rows.length - 1;
+        this.rows = rows;
+        this.sources = sources;
+        this.weights = weights;
+    }
+
+    /**
+     * Applies the operator.
+     *
+     * @param in input image
+     * @return output image
+     */
+    public float[] apply(final float[] in) {
+        if (in.length != inputLength) {
+            throw new IllegalArgumentException("Array length must be " + inputLength + ".");
+        }
+
+        final float[] out = new float[outputLength];
+
+        ParallelUtils.parallelFor(outputLength, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int o = start; o < end; o++) {
+                    float sum = 0;
+                    for (int p = rows[o]; p < rows[o + 1]; p++) {
+                        sum = sum + weights[p] * in[sources[p]];
+                    }
+                    out[o] = sum;
+                }
+            }
+        });
+
+        return out;
+    }
+
+    /**
+     * Returns the memory, in bytes, taken by the operator.
+     *
+     * @return operator size
+     */
+    public long getSize() {
+        return 4L * (rows.length + sources.length + weights.length);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+/**
+ * Reconstruction distance independent part of the Kirchhoff-Helmholtz
+ * propagator: the transformed hologram coordinates, the padded and transformed
+ * {@code kernel2} and the output plane phase. These only depend on the input
+ * and output pixel sizes, so a z-sweep with a fixed output size can share one
+ * object between all the planes.
+ * <p>
+ * The phase of {@code kernel2} and of the output plane is a sum of a term that
+ * only depends on the row and a term that only depends on the column, so both
+ * are stored as two 1D chirps and applied as row and column factors. The
+ * transform of the padded {@code kernel2} is also separable, and only needs
+ * two 1D FFTs.
+ * <p>
+ * {@code kernel2} is padded to the sizes given by {@link PaddingPlanner} for
+ * the pad factor.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class TransferFunction {
+
+    final int M, N, P, Q;
+    final float L, lambda, dx, dy, dxOut, dyOut, padFactor;
+    float xo, yo, Xo, Yo, dX, dY;
+
+    //1D factors, kernel2 is stored already padded and transformed
+    float[] kernel2X, kernel2Y, outputPhaseX, outputPhaseY;
+    final PrunedConvolution convolution;
+
+    public TransferFunction(int M, int N, float lambda, float L, float dx,
+            float dy, float dxOut, float dyOut) {
+
+        this(M, N, lambda, L, dx, dy, dxOut, dyOut,
+                PaddingPlanner.DEFAULT_PAD_FACTOR);
+    }
+
+    /**
+     * Creates the transfer function with {@code kernel2} padded according to
+     * the pad factor.
+     *
+     * @param M size of the hologram
+     * @param N size of the hologram
+     * @param lambda wavelength
+     * @param L source to screen distance
+     * @param dx input pixel size
+     * @param dy input pixel size
+     * @param dxOut output pixel size
+     * @param dyOut output pixel size
+     * @param padFactor pad factor, see {@link PaddingPlanner}
+     */
+    public TransferFunction(int M, int N, float lambda, float L, float dx,
+            float dy, float dxOut, float dyOut, float padFactor) {
+
+        this.M = M;
+        this.N = N;
+        this.lambda = lambda;
+        this.L = L;
+        this.dx = dx;
+        this.dy = dy;
+        this.dxOut = dxOut;
+        this.dyOut = dyOut;
+        this.padFactor = padFactor;
+
+        P = PaddingPlanner.paddedSize(M, padFactor);
+        Q = PaddingPlanner.paddedSize(N, padFactor);
+
+        convolution = new PrunedConvolution(M, N, P, Q);
+
+        calculateCoordinates();
+        calculateKernels();
+    }
+
+    private void calculateCoordinates() {
+        float L2 = L * L;
+
+        //hologram coordinates
+        xo = -dx * (M / 2); //first coordinate
+        yo = -dy * (N / 2);
+
+        float xf = dx * (M - 1 - M / 2); //last coordinate
+        float yf = dy * (N - 1 - N / 2);
+
+        //transformed coordinates
+        Xo = (float) ((xo * L) / Math.sqrt(L2 + xo * xo)); //first transformed coordinate
+        Yo = (float) ((yo * L) / Math.sqrt(L2 + yo * yo));
+
+        float Xf = (float) ((xf * L) / Math.sqrt(L2 + xf * xf)); //last transformed coordinate
+        float Yf = (float) ((yf * L) / Math.sqrt(L2 + yf * yf));
+
+        //pixel size for the transformed hologram
+        dX = (Xf - Xo) / M;
+        dY = (Yf - Yo) / N;
+    }
+
+    private void calculateKernels() {
+        int M2 = (M - 1) / 2;
+        int N2 = (N - 1) / 2;
+
+        float k = 2 * (float) Math.PI / lambda;
+        float factor2 = k / (2 * L);
+
+        //kernel2 padded to P and Q, the chirps start at 0
+        kernel2X = new float[2 * P];
+        kernel2Y = new float[2 * Q];
+
+        outputPhaseX = new float[2 * M];
+        outputPhaseY = new float[2 * N];
+
+        float dXdY = dX * dY;
+
+        for (int i = 0, m = -M2; i < M; i++, m++) {
+            float phase2 = -factor2 * (m * m * dX * dxOut);
+
+            kernel2X[2 * i] = (float) Math.cos(-phase2);
+            kernel2X[2 * i + 1] = (float) Math.sin(-phase2);
+
+            //output plane phase, the dX dY factor goes in the x term
+            outputPhaseX[2 * i] = dXdY * (float) Math.cos(phase2);
+            outputPhaseX[2 * i + 1] = dXdY * (float) Math.sin(phase2);
+        }
+
+        for (int j = 0, n = -N2; j < N; j++, n++) {
+            float phase2 = -factor2 * (n * n * dY * dyOut);
+
+            kernel2Y[2 * j] = (float) Math.cos(-phase2);
+            kernel2Y[2 * j + 1] = (float) Math.sin(-phase2);
+
+            outputPhaseY[2 * j] = (float) Math.cos(phase2);
+            outputPhaseY[2 * j + 1] = (float) Math.sin(phase2);
+        }
+
+        FftPlanCache.getInstance().getFloatFFT_1D(P).complexForward(kernel2X);
+        FftPlanCache.getInstance().getFloatFFT_1D(Q).complexForward(kernel2Y);
+    }
+
+    /**
+     * Convolves the fields with {@code kernel2}.
+     *
+     * @param fields M x N fields
+     * @param workspace work buffers
+     */
+    void convolveKernel2(ComplexField[] fields, Workspace workspace) {
+        convolution.convolve(fields, kernel2X, kernel2Y, workspace);
+    }
+
+    /**
+     * Multiplies the fields by the output plane phase, the outer product of
+     * the two 1D factors. Each element of the phase is computed once for all
+     * the fields.
+     *
+     * @param fields M x N fields
+     */
+    void multiplyOutputPhase(final ComplexField[] fields) {
+        ParallelUtils.parallelFor(N, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int j = start; j < end; j++) {
+                    float yr = outputPhaseY[2 * j];
+                    float yi = outputPhaseY[2 * j + 1];
+
+                    for (int i = 0, k = 2 * M * j; i < M; i++, k += 2) {
+                        float xr = outputPhaseX[2 * i];
+                        float xi = outputPhaseX[2 * i + 1];
+
+                        float kr = xr * yr - xi * yi;
+                        float ki = xr * yi + xi * yr;
+
+                        for (ComplexField field : fields) {
+                            float[] data = field.getData();
+
+                            float re = data[k];
+                            float im = data[k + 1];
+
+                            data[k] = re * kr - im * ki;
+                            data[k + 1] = re * ki + im * kr;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the memory, in bytes, taken by the kernels of this object.
+     *
+     * @return kernels size
+     */
+    public long getKernelsSize() {
+        //2M + 2N floats for the output phase, 2P + 2Q for kernel2
+        return 4L * (2L * (M + N + P + Q));
+    }
+}
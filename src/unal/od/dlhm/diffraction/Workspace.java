@@ -0,0 +1,299 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.io.File;
+import pl.edu.icm.jlargearrays.FloatLargeArray;
+import pl.edu.icm.jlargearrays.LargeArray;
+
+/**
+ * Reusable work buffers for {@code diffract}. A propagator can be shared
+ * between threads, so the buffers belong to the caller: a worker keeps one
+ * workspace and passes it to every {@code diffract} call, so the plane loop
+ * does not allocate after the first plane. The buffers are resized when the
+ * workspace is used with a field of a different size.
+ * <p>
+ * A workspace must not be used by two {@code diffract} calls at the same time.
+ * <p>
+ * The padded rows are the biggest buffer of a propagation, P / M times the
+ * size of the field. In large-field mode they are kept in a
+ * {@link FloatLargeArray} allocated in native memory, outside the Java heap
+ * and indexed with longs, and only one padded row per thread is on the heap.
+ * In out-of-core mode they are kept in a memory-mapped scratch file instead,
+ * and the column pass runs on tiles of a few columns, so the size of a
+ * propagation is limited by the disk. {@link #dispose()} deletes the file.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class Workspace {
+
+    //transformed rows of the convolution, N rows of P complex elements per
+    //field
+    private float[] rows;
+    //same rows in native memory, for the large-field mode
+    private FloatLargeArray largeRows;
+    //one column buffer per chunk of the column pass, Q complex elements each
+    private float[][] columns;
+    //one padded row per chunk of the row passes, for the large-field and
+    //out-of-core modes
+    private float[][] rowBuffers;
+    //same rows in a scratch file, for the out-of-core mode
+    private MappedRows mappedRows;
+    //one tile of N rows per chunk of the column pass, for the out-of-core mode
+    private float[][] tiles;
+
+    private final boolean largeField;
+    private final File scratchDirectory;
+
+    //JLargeArrays frees native memory with sun.misc.Cleaner, which newer JVMs
+    //do not have
+    private static final boolean NATIVE_MEMORY = isNativeMemoryAvailable();
+
+    private static boolean isNativeMemoryAvailable() {
+        try {
+            Class.forName("sun.misc.Cleaner");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public Workspace() {
+        this(false);
+    }
+
+    /**
+     * Returns true if this JVM can keep the padded rows in native memory. When
+     * it cannot, the large-field mode uses the heap buffers.
+     *
+     * @return whether the large-field mode is available
+     */
+    public static boolean isLargeFieldAvailable() {
+        return NATIVE_MEMORY;
+    }
+
+    /**
+     * Creates a workspace, in large-field mode if requested.
+     *
+     * @param largeField true to keep the padded rows in native memory
+     */
+    public Workspace(boolean largeField) {
+        this.largeField = largeField;
+        scratchDirectory = null;
+    }
+
+    /**
+     * Creates a workspace in out-of-core mode.
+     *
+     * @param scratchDirectory directory for the scratch files
+     */
+    public Workspace(File scratchDirectory) {
+        if (!scratchDirectory.isDirectory()) {
+            throw new IllegalArgumentException(scratchDirectory + " is not a directory.");
+        }
+
+        this.scratchDirectory = scratchDirectory;
+        largeField = false;
+    }
+
+    /**
+     * Returns true if the padded rows are kept in a scratch file.
+     *
+     * @return out-of-core mode
+     */
+    public boolean isOutOfCore() {
+        return scratchDirectory != null;
+    }
+
+    /**
+     * Returns true if the padded rows are kept in native memory. This is
+     * false when native memory is not available in this JVM, and the heap
+     * buffers are used instead.
+     *
+     * @return large-field mode
+     */
+    public boolean isLargeField() {
+        return largeField && NATIVE_MEMORY;
+    }
+
+    /**
+     * Returns a buffer for N padded rows of P complex elements. The contents
+     * are not cleared.
+     *
+     * @param P padded width
+     * @param N number of rows, the field height times the number of fields
+     * @return buffer
+     */
+    float[] getRows(int P, int N) {
+        if (rows == null || rows.length != 2 * P * N) {
+            rows = new float[2 * P * N];
+        }
+
+        return rows;
+    }
+
+    /**
+     * Returns a native buffer for N padded rows of P complex elements. The
+     * contents are not cleared.
+     *
+     * @param P padded width
+     * @param N number of rows, the field height times the number of fields
+     * @return buffer
+     */
+    FloatLargeArray getLargeRows(int P, int N) {
+        long length = 2L * P * N;
+
+        if (largeRows == null || largeRows.length() != length) {
+            //drops the old buffer before allocating the new one
+            largeRows = null;
+            largeRows = allocateNative(length);
+        }
+
+        return largeRows;
+    }
+
+    /**
+     * Returns one padded row buffer per chunk, with P complex elements each.
+     * The contents are not cleared.
+     *
+     * @param chunks number of chunks
+     * @param P padded width
+     * @return buffers
+     */
+    float[][] getRowBuffers(int chunks, int P) {
+        if (rowBuffers == null || rowBuffers.length < chunks
+                || rowBuffers[0].length != 2 * P) {
+            rowBuffers = new float[chunks][2 * P];
+        }
+
+        return rowBuffers;
+    }
+
+    /**
+     * Returns the scratch file for N padded rows of P complex elements. The
+     * contents are not cleared.
+     *
+     * @param P padded width
+     * @param N number of rows, the field height times the number of fields
+     * @return mapped rows
+     */
+    MappedRows getMappedRows(int P, int N) {
+        if (mappedRows == null || !mappedRows.hasSize(P, N)) {
+            dispose();
+            mappedRows = new MappedRows(scratchDirectory, P, N);
+        }
+
+        return mappedRows;
+    }
+
+    /**
+     * Returns one tile buffer per chunk, with N rows of width complex
+     * elements each. The contents are not cleared.
+     *
+     * @param chunks number of chunks
+     * @param width tile width
+     * @param N height of the field
+     * @return buffers
+     */
+    float[][] getTiles(int chunks, int width, int N) {
+        if (tiles == null || tiles.length < chunks
+                || tiles[0].length != 2 * width * N) {
+            tiles = new float[chunks][2 * width * N];
+        }
+
+        return tiles;
+    }
+
+    /**
+     * Deletes the scratch file, if any. The workspace can still be used, and
+     * creates a new file when needed.
+     */
+    public void dispose() {
+        if (mappedRows != null) {
+            mappedRows.close();
+            mappedRows = null;
+        }
+    }
+
+    /**
+     * FloatLargeArray only uses native memory above a global size limit, so
+     * the limit is lowered while the array is created.
+     */
+    private static FloatLargeArray allocateNative(long length) {
+        synchronized (LargeArray.class) {
+            int limit = LargeArray.getMaxSizeOf32bitArray();
+            LargeArray.setMaxSizeOf32bitArray(0);
+
+            try {
+                return new FloatLargeArray(length, false);
+            } finally {
+                LargeArray.setMaxSizeOf32bitArray(limit);
+            }
+        }
+    }
+
+    /**
+     * Returns one column buffer per chunk, with Q complex elements each. The
+     * contents are not cleared.
+     *
+     * @param chunks number of chunks
+     * @param Q padded height
+     * @return buffers
+     */
+    float[][] getColumns(int chunks, int Q) {
+        if (columns == null || columns.length < chunks
+                || columns[0].length != 2 * Q) {
+            columns = new float[chunks][2 * Q];
+        }
+
+        return columns;
+    }
+
+    /**
+     * Returns the memory, in bytes, taken by the buffers, native memory
+     * included. The scratch file is not counted.
+     *
+     * @return buffers size
+     */
+    public long getSize() {
+        long size = 0;
+
+        if (rows != null) {
+            size += 4L * rows.length;
+        }
+
+        if (largeRows != null) {
+            size += 4L * largeRows.length();
+        }
+
+        if (columns != null) {
+            size += 4L * columns.length * columns[0].length;
+        }
+
+        if (rowBuffers != null) {
+            size += 4L * rowBuffers.length * rowBuffers[0].length;
+        }
+
+        if (tiles != null) {
+            size += 4L * tiles.length * tiles[0].length;
+        }
+
+        return size;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Arrays;
+
+/**
+ * Maximum, minimum, mean and standard deviation projections of a z-sweep,
+ * accumulated one plane at a time. The mean and the sum of squared deviations
+ * are updated with Welford's method, so no plane is kept and the memory does
+ * not depend on the number of planes.
+ * <p>
+ * An object is not thread safe. Each thread accumulates its own planes and the
+ * partial projections are joined with {@link #merge(ZProjection)}.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class ZProjection {
+
+    private final int M, N;
+
+    //running statistics of each pixel, m2 is the sum of squared deviations
+    private final float[] max;
+    private final float[] min;
+    private final float[] mean;
+    private final float[] m2;
+
+    private int planes;
+
+    /**
+     * Creates an empty projection.
+     *
+     * @param M width of the planes
+     * @param N height of the planes
+     */
+    public ZProjection(int M, int N) {
+        this.M = M;
+        this.N = N;
+
+        max = new float[M * N];
+        min = new float[M * N];
+        mean = new float[M * N];
+        m2 = new float[M * N];
+
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        Arrays.fill(min, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Adds a plane to the projections.
+     *
+     * @param plane M x N plane, not kept
+     */
+    public void add(float[] plane) {
+        if (plane.length != M * N) {
+            throw new IllegalArgumentException("Plane size does not match the "
+                    + "projection size.");
+        }
+
+        planes++;
+        float n = planes;
+
+        for (int k = 0; k < plane.length; k++) {
+            float value = plane[k];
+
+            if (value > max[k]) {
+                max[k] = value;
+            }
+            if (value < min[k]) {
+                min[k] = value;
+            }
+
+            float delta = value - mean[k];
+            mean[k] += delta / n;
+            m2[k] += delta * (value - mean[k]);
+        }
+    }
+
+    /**
+     * Adds the planes of another projection, combining the means and the
+     * squared deviations of both (Chan et al.). The other projection is not
+     * changed.
+     *
+     * @param other projection of the same size
+     */
+    public void merge(ZProjection other) {
+        if (other.M != M || other.N != N) {
+            throw new IllegalArgumentException("Projection sizes do not match.");
+        }
+
+        if (other.planes == 0) {
+            return;
+        }
+
+        float na = planes;
+        float nb = other.planes;
+        float n = na + nb;
+
+        for (int k = 0; k < mean.length; k++) {
+            max[k] = Math.max(max[k], other.max[k]);
+            min[k] = Math.min(min[k], other.min[k]);
+
+            float delta = other.mean[k] - mean[k];
+            mean[k] += delta * nb / n;
+            m2[k] += other.m2[k] + delta * delta * na * nb / n;
+        }
+
+        planes += other.planes;
+    }
+
+    public float[] getMax() {
+        return max.clone();
+    }
+
+    public float[] getMin() {
+        return min.clone();
+    }
+
+    public float[] getMean() {
+        return mean.clone();
+    }
+
+    /**
+     * Returns the sample standard deviation of each pixel, as ImageJ's
+     * Z Project. Zero with a single plane.
+     *
+     * @return M x N standard deviation
+     */
+    public float[] getStandardDeviation() {
+        float[] sd = new float[M * N];
+        if (planes < 2) {
+            return sd;
+        }
+
+        for (int k = 0; k < sd.length; k++) {
+            sd[k] = (float) Math.sqrt(Math.max(m2[k], 0) / (planes - 1));
+        }
+
+        return sd;
+    }
+
+    /**
+     * Returns the number of planes added.
+     *
+     * @return planes
+     */
+    public int getPlanes() {
+        return planes;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.rec;
+
+import ij.IJ;
+import ij.measure.ResultsTable;
+import java.awt.Cursor;
+import java.io.File;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
+import unal.od.dlhm.diffraction.Autofocus;
+import unal.od.dlhm.diffraction.ComplexField;
+import unal.od.dlhm.diffraction.FocusMetric;
+import unal.od.dlhm.diffraction.PaddingPlanner;
+import unal.od.dlhm.diffraction.Workspace;
+
+/**
+ * Searches the focus plane between two distances with an {@link Autofocus},
+ * shows the metric of the evaluated planes in a results table and sets the
+ * best distance as the reconstruction distance.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class AutofocusWorker extends SwingWorker<Void, Void> {
+
+    //parent frame
+    private final ReconstructionFrame parent;
+
+    //parameters
+    private float lambda, L, dx, dy;
+    private float zStart, zEnd, tolerance;
+    private float padFactor = PaddingPlanner.DEFAULT_PAD_FACTOR;
+    private boolean largeField;
+    private boolean outOfCore;
+    private FocusMetric metric;
+
+    //interpolated hologram field
+    private ComplexField field;
+
+    private Autofocus autofocus;
+    private float best = Float.NaN;
+
+    //formatter
+    private final DecimalFormat df;
+
+    private String namesSuffix;
+    private String reconstructionUnits;
+
+    public AutofocusWorker(ReconstructionFrame parent) {
+        this.parent = parent;
+
+        df = new DecimalFormat("#.####", new DecimalFormatSymbols(Locale.US));
+    }
+
+    @Override
+    protected Void doInBackground() throws Exception {
+        parent.setCursor(Cursor.getPredefinedCursor(3));
+
+        parent.updateLog(true,
+                "\nAutofocus: " + metric
+                + "\nFrom: " + df.format(umToUnits(zStart)) + " "
+                + reconstructionUnits
+                + "\nTo: " + df.format(umToUnits(zEnd)) + " "
+                + reconstructionUnits
+                + "\nTolerance: " + df.format(umToUnits(tolerance)) + " "
+                + reconstructionUnits);
+
+        IJ.showStatus("DLHM Autofocus...");
+
+        Workspace workspace;
+        if (outOfCore) {
+            workspace = new Workspace(new File(System.getProperty("java.io.tmpdir")));
+        } else {
+            workspace = new Workspace(largeField);
+        }
+
+        autofocus = new Autofocus(field, lambda, L, dx, dy, metric);
+        autofocus.setPadFactor(padFactor);
+        autofocus.setWorkspace(workspace);
+
+        try {
+            best = autofocus.search(zStart, zEnd, tolerance);
+        } finally {
+            workspace.dispose();
+        }
+
+        return null;
+    }
+
+    @Override
+    protected void done() {
+        parent.setCursor(Cursor.getDefaultCursor());
+
+        if (isCancelled()) {
+            parent.updateLog(true, "\nCould not complete the autofocus.");
+            IJ.showStatus("");
+            return;
+        }
+
+        try {
+            get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exc) {
+            //the search failed, its exception is the cause
+            Throwable cause = exc.getCause();
+            while (cause instanceof ExecutionException
+                    && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+
+            parent.updateLog(true,
+                    "\nCould not complete the autofocus: " + cause);
+            IJ.showStatus("");
+            return;
+        }
+
+        if (Float.isNaN(best)) {
+            parent.updateLog(true, "\nCould not complete the autofocus.");
+            IJ.showStatus("");
+            return;
+        }
+
+        float[][] curve = autofocus.getCurve();
+
+        ResultsTable rt = new ResultsTable();
+        for (int i = 0; i < curve[0].length; i++) {
+            rt.incrementCounter();
+            rt.addValue("z [" + reconstructionUnits + "]", umToUnits(curve[0][i]));
+            rt.addValue(metric.toString(), curve[1][i]);
+        }
+
+        rt.show("Autofocus" + namesSuffix);
+
+        parent.updateLog(false,
+                "\nPlanes: " + autofocus.getEvaluations()
+                + "\nBest distance: " + df.format(umToUnits(best)) + " "
+                + reconstructionUnits);
+
+        parent.setReconstructionDistance(best);
+
+        IJ.showStatus("DLHM Autofocus: done!");
+    }
+
+    private float umToUnits(float n) {
+
+        if (reconstructionUnits.equals("nm")) {
+            return n * 1E3f;
+        } else if (reconstructionUnits.equals("mm")) {
+            return n * 1E-3f;
+        } else if (reconstructionUnits.equals("cm")) {
+            return n * 1E-4f;
+        } else if (reconstructionUnits.equals("m")) {
+            return n * 1E-6f;
+        }
+
+        return n;
+    }
+
+    public void setField(ComplexField field) {
+        this.field = field;
+    }
+
+    public void setParameters(float lambda, float L, float inputW, float inputH) {
+        this.lambda = lambda;
+        this.L = L;
+        this.dx = inputW / field.getWidth();
+        this.dy = inputH / field.getHeight();
+    }
+
+    /**
+     * Sets the search range.
+     *
+     * @param zStart first distance
+     * @param zEnd last distance
+     * @param tolerance distance between the planes of the final bracket
+     */
+    public void setDistances(float zStart, float zEnd, float tolerance) {
+        this.zStart = zStart;
+        this.zEnd = zEnd;
+        this.tolerance = tolerance;
+    }
+
+    public void setMetric(FocusMetric metric) {
+        this.metric = metric;
+    }
+
+    public void setPadFactor(float padFactor) {
+        this.padFactor = padFactor;
+    }
+
+    public void setLargeField(boolean largeField) {
+        this.largeField = largeField;
+    }
+
+    public void setOutOfCore(boolean outOfCore) {
+        this.outOfCore = outOfCore;
+    }
+
+    public void setInfo(String hologramTitle, String reconstructionUnits) {
+        this.namesSuffix = "; Holo: " + hologramTitle;
+        this.reconstructionUnits = reconstructionUnits;
+    }
+}
@@ -16,8 +16,10 @@
 
 package unal.od.dlhm.rec;
 
+import ij.io.DirectoryChooser;
 import java.awt.Component;
 import java.awt.Toolkit;
+import java.io.File;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
@@ -30,6 +32,8 @@ import javax.swing.JOptionPane;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 import unal.od.dlhm.PreferencesKeys;
+import unal.od.dlhm.diffraction.DepthMap;
+import unal.od.dlhm.diffraction.FocusMetric;
 
 /**
  *
@@ -63,6 +67,10 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
     private String reconstructionUnits;
     private boolean isStep;
     private int maxPlanes;
+    private int metricIdx;
+    private boolean depthMap;
+    private int depthTile;
+    private boolean projections;
 
     //formatter
     private final DecimalFormat df;
@@ -101,6 +109,11 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
         } else {
             pref.putInt(REC_BATCH_PLANES, planes);
         }
+
+        pref.putInt(REC_FOCUS_METRIC, metricCombo.getSelectedIndex());
+        pref.putBoolean(REC_BATCH_DEPTH_MAP, depthChk.isSelected());
+        pref.putInt(REC_DEPTH_TILE, depthTile);
+        pref.putBoolean(REC_BATCH_PROJECTIONS, projectionChk.isSelected());
     }
 
     private void loadPrefs() {
@@ -108,6 +121,19 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
         isStep = pref.getBoolean(REC_IS_STEP, true);
         maxPlanes = pref.getInt(REC_MAX_PLANES, 10);
 
+        metricIdx = pref.getInt(REC_FOCUS_METRIC, 0);
+        if (metricIdx < 0 || metricIdx >= FocusMetric.values().length) {
+            metricIdx = 0;
+        }
+
+        depthMap = pref.getBoolean(REC_BATCH_DEPTH_MAP, false);
+        depthTile = pref.getInt(REC_DEPTH_TILE, 32);
+        if (depthTile < DepthMap.MIN_TILE_SIZE) {
+            depthTile = 32;
+        }
+
+        projections = pref.getBoolean(REC_BATCH_PROJECTIONS, false);
+
         fromUm = pref.getFloat(REC_BATCH_START, Float.NaN);
         if (Float.isNaN(fromUm)) {
             fromSet = false;
@@ -209,6 +235,13 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
         toField = new javax.swing.JTextField();
         incrementsField = new javax.swing.JTextField();
         incrementLabel = new javax.swing.JLabel();
+        focusPanel = new javax.swing.JPanel();
+        metricCombo = new javax.swing.JComboBox();
+        focusBtn = new javax.swing.JButton();
+        depthChk = new javax.swing.JCheckBox();
+        tileField = new javax.swing.JTextField();
+        projectionPanel = new javax.swing.JPanel();
+        projectionChk = new javax.swing.JCheckBox();
         btnsPanel = new javax.swing.JPanel();
         okBtn = new javax.swing.JButton();
         cancelBtn = new javax.swing.JButton();
@@ -300,6 +333,85 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
                     .addComponent(incrementsField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)))
         );
 
+        focusPanel.setBorder(javax.swing.BorderFactory.createTitledBorder("Autofocus"));
+
+        metricCombo.setModel(new javax.swing.DefaultComboBoxModel(FocusMetric.values()));
+        metricCombo.setSelectedIndex(metricIdx);
+        metricCombo.setToolTipText("Focus metric, evaluated on the amplitude");
+
+        focusBtn.setText("Focus");
+        focusBtn.setToolTipText("Searches the plane with the best focus metric between the starting and ending distances, down to the step");
+        focusBtn.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                focusBtnActionPerformed(evt);
+            }
+        });
+
+        depthChk.setSelected(depthMap);
+        depthChk.setText("Depth map");
+        depthChk.setToolTipText("Keeps the best focused tiles of the sweep instead of the stacks, gives a depth map and an all-in-focus image");
+
+        tileField.setColumns(3);
+        tileField.setText(String.valueOf(depthTile));
+        tileField.setToolTipText("Tile size of the depth map [px]");
+        tileField.addFocusListener(new java.awt.event.FocusAdapter() {
+            public void focusGained(java.awt.event.FocusEvent evt) {
+                textFieldFocusGained(evt);
+            }
+        });
+
+        javax.swing.GroupLayout focusPanelLayout = new javax.swing.GroupLayout(focusPanel);
+        focusPanel.setLayout(focusPanelLayout);
+        focusPanelLayout.setHorizontalGroup(
+            focusPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(focusPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(focusPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addGroup(focusPanelLayout.createSequentialGroup()
+                        .addComponent(metricCombo, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(focusBtn))
+                    .addGroup(focusPanelLayout.createSequentialGroup()
+                        .addComponent(depthChk)
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                        .addComponent(tileField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+        focusPanelLayout.setVerticalGroup(
+            focusPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(focusPanelLayout.createSequentialGroup()
+                .addGroup(focusPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(metricCombo, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(focusBtn))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(focusPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(depthChk)
+                    .addComponent(tileField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+
+        projectionPanel.setBorder(javax.swing.BorderFactory.createTitledBorder("Projections"));
+
+        projectionChk.setSelected(projections);
+        projectionChk.setText("Max, min, mean and SD");
+        projectionChk.setToolTipText("Projects the amplitude and the intensity along z as the planes are reconstructed, instead of the stacks");
+
+        javax.swing.GroupLayout projectionPanelLayout = new javax.swing.GroupLayout(projectionPanel);
+        projectionPanel.setLayout(projectionPanelLayout);
+        projectionPanelLayout.setHorizontalGroup(
+            projectionPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(projectionPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(projectionChk)
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+        projectionPanelLayout.setVerticalGroup(
+            projectionPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(projectionPanelLayout.createSequentialGroup()
+                .addComponent(projectionChk)
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+
         okBtn.setText("Ok");
         okBtn.setPreferredSize(new java.awt.Dimension(65, 23));
         okBtn.addActionListener(new java.awt.event.ActionListener() {
@@ -342,6 +454,8 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
                 .addContainerGap()
                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.CENTER)
                     .addComponent(inputPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(focusPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                    .addComponent(projectionPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                     .addComponent(btnsPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addContainerGap())
         );
@@ -350,6 +464,10 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
             .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, layout.createSequentialGroup()
                 .addContainerGap()
                 .addComponent(inputPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(focusPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(projectionPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.UNRELATED)
                 .addComponent(btnsPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                 .addContainerGap())
@@ -358,14 +476,19 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
         pack();
     }// </editor-fold>//GEN-END:initComponents
 
-    private void okBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_okBtnActionPerformed
+    /**
+     * Checks the distances and the step, showing the errors.
+     *
+     * @return true if the distances are valid
+     */
+    private boolean checkDistances() {
         boolean advance = fromSet && toSet && incrementsSet;
 
         if (!advance) {
             Toolkit.getDefaultToolkit().beep();
             JOptionPane.showMessageDialog(this, "Please check the input"
                     + " parameters.", "Error", JOptionPane.ERROR_MESSAGE);
-            return;
+            return false;
         }
 
         if (isStep) {
@@ -378,7 +501,7 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
 
                 incrementsField.setText(df.format(-stepUser));
                 incrementsField.requestFocusInWindow();
-                return;
+                return false;
             }
 
             if ((toUser < fromUser) && (stepUser > 0)) {
@@ -389,7 +512,7 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
 
                 incrementsField.setText(df.format(-stepUser));
                 incrementsField.requestFocusInWindow();
-                return;
+                return false;
             }
 
             if (Math.abs(stepUser) > Math.abs(toUser - fromUser)) {
@@ -400,11 +523,78 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
                         "Error", JOptionPane.ERROR_MESSAGE);
 
                 incrementsField.requestFocusInWindow();
-                return;
+                return false;
             }
         }
 
-        if (planes > maxPlanes) {
+        return true;
+    }
+
+    private boolean checkDepthMap() {
+        if (!worker.isOutputFixed()) {
+            Toolkit.getDefaultToolkit().beep();
+            JOptionPane.showMessageDialog(this, "The depth map needs a fixed "
+                    + "output size, so the tiles of all the planes match.",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+
+        int tile;
+        try {
+            tile = Integer.parseInt(tileField.getText().trim());
+        } catch (NumberFormatException exc) {
+            tile = 0;
+        }
+
+        if (tile < DepthMap.MIN_TILE_SIZE) {
+            Toolkit.getDefaultToolkit().beep();
+            JOptionPane.showMessageDialog(this, "The tile size must be an "
+                    + "integer of at least " + DepthMap.MIN_TILE_SIZE
+                    + " pixels.", "Error", JOptionPane.ERROR_MESSAGE);
+
+            tileField.requestFocusInWindow();
+            return false;
+        }
+
+        depthTile = tile;
+        return true;
+    }
+
+    private void okBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_okBtnActionPerformed
+        if (!checkDistances()) {
+            return;
+        }
+
+        if (depthChk.isSelected() && !checkDepthMap()) {
+            return;
+        }
+
+        if (projectionChk.isSelected() && !worker.isProjectable()) {
+            Toolkit.getDefaultToolkit().beep();
+            JOptionPane.showMessageDialog(this, "The projections need the "
+                    + "amplitude or the intensity output.", "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        worker.setDepthMap(depthChk.isSelected() ? depthTile : 0,
+                (FocusMetric) metricCombo.getSelectedItem());
+        worker.setProjections(projectionChk.isSelected());
+
+        if (depthChk.isSelected() || projectionChk.isSelected()) {
+            //only the best focused tiles and the projections are kept
+        } else if (worker.isLazy()) {
+            //only the planes viewed are reconstructed
+        } else if (worker.isOnDisk()) {
+            //the planes go to disk, their number is only limited by its space
+            DirectoryChooser chooser = new DirectoryChooser("Batch stacks directory");
+            String directory = chooser.getDirectory();
+            if (directory == null) {
+                return;
+            }
+
+            worker.setDirectory(new File(directory));
+        } else if (planes > maxPlanes) {
             String[] options = new String[]{"Yes", "No"};
             int n = JOptionPane.showOptionDialog(this, planes
                     + " planes are going to be reconstructed. Do you want to "
@@ -437,6 +627,24 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
         dispose();
     }//GEN-LAST:event_okBtnActionPerformed
 
+    private void focusBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_focusBtnActionPerformed
+        if (!checkDistances()) {
+            return;
+        }
+
+        FocusMetric metric = (FocusMetric) metricCombo.getSelectedItem();
+        boolean started = parent.autofocus(Math.min(fromUm, toUm),
+                Math.max(fromUm, toUm), Math.abs(stepUm), metric);
+
+        if (!started) {
+            return;
+        }
+
+        setVisible(false);
+        savePrefs();
+        dispose();
+    }//GEN-LAST:event_focusBtnActionPerformed
+
     private void cancelBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cancelBtnActionPerformed
         setVisible(false);
         dispose();
@@ -716,12 +924,19 @@ public class BatchFrame extends javax.swing.JFrame implements PreferencesKeys {
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JPanel btnsPanel;
     private javax.swing.JButton cancelBtn;
+    private javax.swing.JCheckBox depthChk;
+    private javax.swing.JButton focusBtn;
+    private javax.swing.JPanel focusPanel;
     private javax.swing.JTextField fromField;
     private javax.swing.JLabel fromLabel;
     private javax.swing.JLabel incrementLabel;
     private javax.swing.JTextField incrementsField;
     private javax.swing.JPanel inputPanel;
+    private javax.swing.JComboBox metricCombo;
     private javax.swing.JButton okBtn;
+    private javax.swing.JCheckBox projectionChk;
+    private javax.swing.JPanel projectionPanel;
+    private javax.swing.JTextField tileField;
     private javax.swing.JTextField toField;
     private javax.swing.JLabel toLabel;
     // End of variables declaration//GEN-END:variables
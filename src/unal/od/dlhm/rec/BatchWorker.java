@@ -22,12 +22,24 @@ import ij.measure.Calibration;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Cursor;
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.Locale;
+import java.util.concurrent.ExecutionException;
 import javax.swing.SwingWorker;
+import unal.od.dlhm.diffraction.ComplexField;
+import unal.od.dlhm.diffraction.DepthMap;
+import unal.od.dlhm.diffraction.FftPlanCache;
+import unal.od.dlhm.diffraction.FocusMetric;
 import unal.od.dlhm.diffraction.KirchhoffHelmholtz;
-import unal.od.jdiffraction.cpu.utils.ArrayUtils;
+import unal.od.dlhm.diffraction.OutputExtractor;
+import unal.od.dlhm.diffraction.PaddingPlanner;
+import unal.od.dlhm.diffraction.PropagatorCache;
+import unal.od.dlhm.diffraction.TransferFunction;
+import unal.od.dlhm.diffraction.Workspace;
+import unal.od.dlhm.diffraction.ZProjection;
 
 /**
  *
@@ -37,6 +49,15 @@ import unal.od.jdiffraction.cpu.utils.ArrayUtils;
  */
 public class BatchWorker extends SwingWorker<Void, Void> {
 
+    /**
+     * Default memory budget of the planes reconstructed at once, in MB.
+     */
+    public static final int DEFAULT_MEMORY_BUDGET_MB = 512;
+
+    //names of the outputs, in the order of the slices of a plane
+    private static final String[] OUTPUT_NAMES = {"Phase", "Amplitude",
+        "Intensity", "Real", "Imaginary"};
+
     //parent frame
     private final ReconstructionFrame parent;
 
@@ -50,17 +71,47 @@ public class BatchWorker extends SwingWorker<Void, Void> {
     private float dxOut, dyOut;
     private boolean outputFixed;
 
+    //fft padding
+    private float padFactor = PaddingPlanner.DEFAULT_PAD_FACTOR;
+
     //hologram field
-    private float[][] outputField, interpolatedField;
+    private ComplexField interpolatedField;
 
     //hologram and reference for phase reconstruction
-    private float[][] interpolatedHologram, interpolatedReference;
-    private float[][] outputFieldHologram, outputFieldReference, outputFieldPhase;
+    private ComplexField interpolatedHologram, interpolatedReference;
 
     //has reference
     private boolean hasReference = false;
 
-    private KirchhoffHelmholtz propagator;
+    //work buffers mode
+    private boolean largeField;
+    private boolean outOfCore;
+
+    //memory for the planes reconstructed at once, in bytes
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET_MB * 1024L * 1024L;
+
+    //stacks written to raw files as the planes are reconstructed
+    private boolean onDisk;
+    private File directory;
+    private StackWriter[] writers;
+
+    //depth map mode, only the best focused tiles are kept
+    private int depthTile;
+    private FocusMetric depthMetric;
+    private DepthMap depthMap;
+
+    //z projections of the amplitude and the intensity, accumulated by the
+    //lanes
+    private boolean projections;
+    private ZProjection amplitudeProjection;
+    private ZProjection intensityProjection;
+
+    //planes reconstructed when they are viewed
+    private boolean lazy;
+    private PlaneCache planeCache;
+
+    //labels of the planes
+    private String[] labels;
 
     //formatter
     private final DecimalFormat df;
@@ -125,219 +176,526 @@ public class BatchWorker extends SwingWorker<Void, Void> {
             parent.updateLog(false, "\nOutput Sizes: Geometry");
         }
 
-        phaseStack = new ImageStack(M, N);
-        amplitudeStack = new ImageStack(M, N);
-        intensityStack = new ImageStack(M, N);
-        realStack = new ImageStack(M, N);
-        imaginaryStack = new ImageStack(M, N);
+        if (depthTile > 0) {
+            depthMap = new DepthMap(M, N, depthTile, depthMetric);
+            parent.updateLog(false, "\nDepth map: " + depthMetric + ", "
+                    + depthTile + " px tiles");
+
+            //the amplitude of the hologram is enough to find the focus
+            if (interpolatedField == null) {
+                interpolatedField = interpolatedHologram;
+            }
+        }
+
+        if (projections) {
+            parent.updateLog(false, "\nZ projections: max, min, mean and SD");
+        }
+
+        if (isReduced()) {
+            //only the reductions of the planes are kept
+        } else if (lazy) {
+            //the planes are only reconstructed when viewed
+        } else if (onDisk) {
+            createWriters();
+            parent.updateLog(false, "\nStacks directory: " + directory.getPath());
+        } else {
+            phaseStack = new ImageStack(M, N);
+            amplitudeStack = new ImageStack(M, N);
+            intensityStack = new ImageStack(M, N);
+            realStack = new ImageStack(M, N);
+            imaginaryStack = new ImageStack(M, N);
+        }
+
+        //the large-field mode needs sun.misc.Cleaner
+        if (largeField && !outOfCore && !Workspace.isLargeFieldAvailable()) {
+            parent.updateLog(false, "\nOff-heap buffers unavailable on this"
+                    + " JVM, using heap.");
+        }
+
+        //distances of the planes, accumulated as the sweep always did
+        float[] distances = getDistances();
+        int count = distances.length;
 
         int progress = 0;
         IJ.showStatus("DLHM Batch mode: " + progress + "/" + planes);
         IJ.showProgress(progress);
 
-        for (float z = zStart; z <= zEnd; z += zStep) {
+        FftPlanCache plans = FftPlanCache.getInstance();
+        int misses = plans.getMisses();
 
-            if (!outputFixed) {
-                dxOut = dx * z / L;
-                dyOut = dy * z / L;
+        //with a fixed output size the z independent kernels are shared by all
+        //the planes
+        TransferFunction transfer = null;
+        if (outputFixed) {
+            transfer = PropagatorCache.getInstance().getTransferFunction(M, N,
+                    lambda, L, dx, dy, dxOut, dyOut, padFactor);
+        }
 
-                if (z == 0) {
-                    dxOut = dx / L;
-                    dyOut = dy / L;
-                }
-            }
+        if (lazy && !isReduced()) {
+            //the viewed and the prefetched planes are reconstructed at the
+            //same time, each with its own lane
+            Lane lane = new Lane(0, 1, distances, transfer);
+            lane.allocate();
 
-            propagator = new KirchhoffHelmholtz(M, N, lambda, z, L, dx, dy,
-                    dxOut, dyOut);
+            Lane prefetchLane = new Lane(0, 1, distances, transfer);
+            prefetchLane.allocate();
 
-            if (amplitudeSelected || intensitySelected || realSelected || imaginarySelected || (phaseSelected && !hasReference)) {
+            labels = new String[count];
+            for (int p = 0; p < count; p++) {
+                labels[p] = getLabel(distances[p]);
+            }
 
-                outputField = new float[M][2 * N];
-                for (int i = 0; i < M; i++) {
-                    System.arraycopy(interpolatedField[i], 0, outputField[i], 0, 2 * N);
-                }
+            int capacity = getCachedPlanes(count);
+            parent.updateLog(false, "\nPlanes reconstructed on view, "
+                    + capacity + " cached");
 
-                propagator.diffract(outputField);
-            }
+            planeCache = new PlaneCache(lane, prefetchLane, count, capacity);
 
-            if (phaseSelected && hasReference) {
+            //the first plane is shown at once
+            planeCache.getPlane(0);
 
-                //copies the interpolated field into a new array for the output field
-                outputFieldHologram = new float[M][2 * N];
-                outputFieldReference = new float[M][2 * N];
+            return null;
+        }
 
-                for (int i = 0; i < M; i++) {
-                    System.arraycopy(interpolatedHologram[i], 0, outputFieldHologram[i], 0, 2 * N);
-                    System.arraycopy(interpolatedReference[i], 0, outputFieldReference[i], 0, 2 * N);
-                }
+        //several planes are reconstructed at once, each lane takes every
+        //lanes-th plane with its own propagator and buffers
+        int lanes = getLanes(count);
+        parent.updateLog(false, "\nParallel planes: " + lanes);
 
-                propagator.diffract(outputFieldHologram);
-                propagator.diffract(outputFieldReference);
+        labels = new String[count];
 
-                //outputFieldPhase = divideFields(outputFieldHologram, outputFieldReference);
-            }
+        Lane[] laneTasks = new Lane[lanes];
+        for (int t = 0; t < lanes; t++) {
+            laneTasks[t] = new Lane(t, lanes, distances, transfer);
+        }
 
-            String label = "z = " + df.format(umToUnits(z))
-                    + " " + reconstructionUnits;
+        //bounds the slices waiting to be written, the lane of the next plane
+        //to write can always go on
+        PlaneSweep<ImageProcessor[]> sweep = new PlaneSweep<ImageProcessor[]>(
+                count, 2 * lanes);
 
-            if (!outputFixed) {
-                label += "; W = " + df.format(M * dxOut) + " um; H = "
-                        + df.format(N * dyOut) + " um";
-            }
+        try {
+            //the slices are added in z order as soon as they are ready
+            sweep.run(laneTasks, new PlaneSweep.Writer<ImageProcessor[]>() {
 
-            //if (phaseSelected) {
-            //float[][] phase;
-            //   if (hasReference) {
-            if (phaseSelected && hasReference) {
+                @Override
+                public void write(int p, ImageProcessor[] ips)
+                        throws IOException {
 
-                outputFieldPhase = new float[M][2 * N];
+                    addSlices(labels[p], ips);
 
-                for (int i = 0; i < M; i++) {
-                    for (int j = 0; j < N; j++) {
-                        float a = outputFieldHologram[i][2 * j];
-                        float b = outputFieldHologram[i][2 * j + 1];
-                        float c = outputFieldReference[i][2 * j];
-                        float d = outputFieldReference[i][2 * j + 1];
-                        outputFieldPhase[i][2 * j] = (a * c + b * d) / (c * c + d * d);
-                        outputFieldPhase[i][2 * j + 1] = (b * c - a * d) / (c * c + d * d);
+                    //refreshes the imagej window with the progress
+                    IJ.showProgress((p + 1) / (float) planes);
+                    IJ.showStatus("DLHM Batch mode: " + (p + 1) + "/" + planes);
+                }
+            });
+        } finally {
+            if (writers != null) {
+                for (StackWriter writer : writers) {
+                    if (writer != null) {
+                        writer.close();
                     }
                 }
+            }
+        }
 
-                float[][] phase = ArrayUtils.phase(outputFieldPhase);
+        if (projections) {
+            mergeProjections(laneTasks);
+        }
 
-                ImageProcessor ip = new FloatProcessor(phase);
-                //ip.setMinAndMax(-Math.PI, Math.PI);
+        //plans created by the whole sweep, planes of the same size share them
+        parent.updateLog(false, "\n" + plans.describe(misses));
 
-                if (phaseByteSelected) {
-                    ip = ip.convertToByteProcessor();
-                }
+        return null;
+    }
 
-                phaseStack.addSlice(label, ip);
-            } else if (phaseSelected) {
-                float[][] phase = ArrayUtils.phase(outputField);
+    @Override
+    protected void done() {
+        if (isCancelled()) {
+            parent.setCursor(Cursor.getDefaultCursor());
 
-                ImageProcessor ip = new FloatProcessor(phase);
-                ip.setMinAndMax(-Math.PI, Math.PI);
+            parent.updateLog(true,
+                    "\nCould not complete the reconstruction.");
 
-                if (phaseByteSelected) {
-                    ip = ip.convertToByteProcessor();
-                }
+            return;
+        }
 
-                phaseStack.addSlice(label, ip);
+        try {
+            get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exc) {
+            //a failed lane, its exception is the cause
+            Throwable cause = exc.getCause();
+            while (cause instanceof ExecutionException
+                    && cause.getCause() != null) {
+                cause = cause.getCause();
             }
 
-            if (amplitudeSelected) {
-                float[][] amplitude = ArrayUtils.modulus(outputField);
+            parent.setCursor(Cursor.getDefaultCursor());
+            parent.updateLog(true,
+                    "\nCould not complete the reconstruction: " + cause);
+            IJ.showStatus("");
+            IJ.showProgress(1.0);
 
-                ImageProcessor ip = new FloatProcessor(amplitude);
-                if (amplitudeLogSelected) {
-                    ip.log();
+            return;
+        }
+
+        if (depthMap != null) {
+            showDepthMap();
+        }
+
+        if (amplitudeProjection != null) {
+            showProjections("Amplitude", amplitudeProjection);
+        }
+        if (intensityProjection != null) {
+            showProjections("Intensity", intensityProjection);
+        }
+
+        if (!isReduced()) {
+            boolean[] selected = {phaseSelected, amplitudeSelected,
+                intensitySelected, realSelected, imaginarySelected};
+
+            for (int i = 0; i < selected.length; i++) {
+                if (selected[i]) {
+                    show(i);
                 }
+            }
+        }
+
+        IJ.showStatus("DLHM Batch mode: done!");
+        parent.setCursor(Cursor.getDefaultCursor());
+    }
 
-                ip = ip.convertToByteProcessor();
-                amplitudeStack.addSlice(label, ip);
+    /**
+     * Shows the stack of an output.
+     *
+     * @param output index of the output in {@link #OUTPUT_NAMES}
+     */
+    private void show(int output) {
+        String title = OUTPUT_NAMES[output] + namesSuffix;
+        ImagePlus imp;
+
+        if (planeCache != null) {
+            imp = new ImagePlus(title, new PlaneStack(M, N, getBitDepth(output),
+                    planeCache, output, labels));
+
+            if (output == 0 && !hasReference && !phaseByteSelected) {
+                imp.setDisplayRange(-Math.PI, Math.PI);
+            }
+        } else if (writers != null) {
+            try {
+                imp = writers[output].open(title);
+            } catch (IOException exc) {
+                IJ.error("DLHM", "Could not open " + writers[output].getFile()
+                        + ":\n" + exc.getMessage());
+                return;
             }
 
-            if (intensitySelected) {
-                float[][] intensity = ArrayUtils.modulusSq(outputField);
+            if (imp == null) {
+                return;
+            }
 
-                ImageProcessor ip = new FloatProcessor(intensity);
-                if (intensityLogSelected) {
-                    ip.log();
+            //the stack in memory took the range of the first slice
+            if (output == 0 && !hasReference && !phaseByteSelected) {
+                imp.setDisplayRange(-Math.PI, Math.PI);
+            }
+        } else {
+            ImageStack[] stacks = {phaseStack, amplitudeStack, intensityStack,
+                realStack, imaginaryStack};
+
+            imp = new ImagePlus(title, stacks[output]);
+        }
+
+        if (outputFixed) {
+            imp.setCalibration(cal);
+        }
+
+        imp.show();
+    }
+
+    /**
+     * Shows the depth map, in reconstruction units, and the all-in-focus
+     * amplitude.
+     */
+    private void showDepthMap() {
+        float[] depth = depthMap.getDepthMap();
+        for (int k = 0; k < depth.length; k++) {
+            depth[k] = umToUnits(depth[k]);
+        }
+
+        ImagePlus[] imps = {
+            new ImagePlus("Depth map [" + reconstructionUnits + "]"
+            + namesSuffix, new FloatProcessor(M, N, depth)),
+            new ImagePlus("All-in-focus" + namesSuffix,
+            new FloatProcessor(M, N, depthMap.getComposite()))
+        };
+
+        for (ImagePlus imp : imps) {
+            imp.setCalibration(cal);
+            imp.show();
+        }
+    }
+
+    /**
+     * Joins the projections of the lanes, in lane order.
+     *
+     * @param laneTasks lanes of the sweep
+     */
+    private void mergeProjections(Lane[] laneTasks) {
+        for (Lane lane : laneTasks) {
+            if (lane.amplitudeProjection != null) {
+                if (amplitudeProjection == null) {
+                    amplitudeProjection = lane.amplitudeProjection;
+                } else {
+                    amplitudeProjection.merge(lane.amplitudeProjection);
                 }
+            }
 
-                ip = ip.convertToByteProcessor();
-                intensityStack.addSlice(label, ip);
+            if (lane.intensityProjection != null) {
+                if (intensityProjection == null) {
+                    intensityProjection = lane.intensityProjection;
+                } else {
+                    intensityProjection.merge(lane.intensityProjection);
+                }
             }
+        }
+    }
 
-            if (realSelected) {
-                float[][] real = ArrayUtils.real(outputField);
+    /**
+     * Shows the projections of an output as a stack, one slice per
+     * projection.
+     *
+     * @param name output name
+     * @param projection projection
+     */
+    private void showProjections(String name, ZProjection projection) {
+        ImageStack stack = new ImageStack(M, N);
+        stack.addSlice("Max", projection.getMax());
+        stack.addSlice("Min", projection.getMin());
+        stack.addSlice("Mean", projection.getMean());
+        stack.addSlice("SD", projection.getStandardDeviation());
+
+        ImagePlus imp = new ImagePlus(name + " projections" + namesSuffix,
+                stack);
+        imp.setCalibration(cal);
+        imp.show();
+    }
 
-                ImageProcessor ip = new FloatProcessor(real);
-                if (realByteSelected) {
-                    ip = ip.convertToByteProcessor();
-                }
+    /**
+     * Creates the raw files of the selected outputs in the stacks directory.
+     *
+     * @throws IOException if a file can not be created
+     */
+    private void createWriters() throws IOException {
+        boolean[] selected = {phaseSelected, amplitudeSelected,
+            intensitySelected, realSelected, imaginarySelected};
+
+        writers = new StackWriter[selected.length];
+
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i]) {
+                File file = File.createTempFile(OUTPUT_NAMES[i] + "_", ".raw",
+                        directory);
+                writers[i] = new StackWriter(file, M, N);
+            }
+        }
+    }
+
+    /**
+     * Returns the bit depth of the slices of an output.
+     *
+     * @param output index of the output in {@link #OUTPUT_NAMES}
+     * @return 8 or 32
+     */
+    private int getBitDepth(int output) {
+        boolean[] byteSelected = {phaseByteSelected, true, true,
+            realByteSelected, imaginaryByteSelected};
+
+        return byteSelected[output] ? 8 : 32;
+    }
 
-                realStack.addSlice(label, ip);
+    /**
+     * Returns the number of planes kept in memory by the lazy mode: as many
+     * as fit in the memory budget, and at least the ones prefetched around
+     * the viewed plane.
+     *
+     * @param count number of planes
+     * @return cached planes
+     */
+    private int getCachedPlanes(int count) {
+        boolean[] selected = {phaseSelected, amplitudeSelected,
+            intensitySelected, realSelected, imaginarySelected};
+
+        long planeSize = 0;
+        for (int i = 0; i < selected.length; i++) {
+            if (selected[i]) {
+                planeSize += (long) M * N * getBitDepth(i) / 8;
             }
+        }
 
-            if (imaginarySelected) {
-                float[][] imaginary = ArrayUtils.imaginary(outputField);
+        long capacity = memoryBudget / Math.max(1, planeSize);
 
-                ImageProcessor ip = new FloatProcessor(imaginary);
-                if (imaginaryByteSelected) {
-                    ip = ip.convertToByteProcessor();
-                }
+        return (int) Math.max(PlaneCache.MIN_CAPACITY, Math.min(capacity, count));
+    }
 
-                imaginaryStack.addSlice(label, ip);
+    /**
+     * Returns the slice label of a plane.
+     *
+     * @param z distance of the plane
+     * @return label
+     */
+    private String getLabel(float z) {
+        String label = "z = " + df.format(umToUnits(z))
+                + " " + reconstructionUnits;
+
+        if (!outputFixed) {
+            float dxOut = dx * z / L;
+            float dyOut = dy * z / L;
+
+            if (z == 0) {
+                dxOut = dx / L;
+                dyOut = dy / L;
             }
 
-            //refreshes the imagej window with the progress
-            IJ.showProgress(++progress / (float) planes);
-            IJ.showStatus("DLHM Batch mode: " + progress + "/" + planes);
+            label += "; W = " + df.format(M * dxOut) + " um; H = "
+                    + df.format(N * dyOut) + " um";
         }
 
-        return null;
+        return label;
     }
 
-    @Override
-    protected void done() {
-        if (isCancelled()) {
-            parent.setCursor(Cursor.getDefaultCursor());
+    /**
+     * Returns the distances of the sweep.
+     *
+     * @return z of each plane
+     */
+    private float[] getDistances() {
+        int count = 0;
+        for (float z = zStart; z <= zEnd; z += zStep) {
+            count++;
+        }
 
-            parent.updateLog(true,
-                    "\nCould not complete the reconstruction.");
+        float[] distances = new float[count];
 
-            return;
+        int p = 0;
+        for (float z = zStart; z <= zEnd; z += zStep) {
+            distances[p++] = z;
         }
 
-        if (phaseSelected) {
-            ImagePlus imp = new ImagePlus("Phase" + namesSuffix, phaseStack);
-            if (outputFixed) {
-                imp.setCalibration(cal);
-            }
+        return distances;
+    }
 
-            imp.show();
+    /**
+     * Returns the number of planes reconstructed at once: one per processor,
+     * as long as the buffers of all of them fit in the memory budget, and at
+     * least one.
+     *
+     * @param count number of planes
+     * @return lanes
+     */
+    private int getLanes(int count) {
+        long size = (long) M * N;
+        long padded = (long) PaddingPlanner.paddedSize(M, padFactor) * N;
+
+        int fields = (isFieldSelected() ? 1 : 0)
+                + (isReferenceSelected() ? 2 : 0);
+        int outputs = (phaseSelected ? 1 : 0) + (amplitudeSelected ? 1 : 0)
+                + (intensitySelected ? 1 : 0) + (realSelected ? 1 : 0)
+                + (imaginarySelected ? 1 : 0);
+
+        //the reductions only extract the amplitude and the intensity, each
+        //projected output takes four accumulators
+        if (isReduced()) {
+            outputs = (depthTile > 0 || isAmplitudeProjected() ? 1 : 0)
+                    + (isIntensityProjected() ? 1 : 0)
+                    + (isAmplitudeProjected() ? 4 : 0)
+                    + (isIntensityProjected() ? 4 : 0);
         }
 
-        if (amplitudeSelected) {
-            ImagePlus imp = new ImagePlus("Amplitude" + namesSuffix, amplitudeStack);
-            if (outputFixed) {
-                imp.setCalibration(cal);
-            }
+        //output fields, FFT rows, output arrays
+        long laneSize = 8 * size * fields + 4 * size * outputs;
+        if (!outOfCore) {
+            laneSize += 8 * padded * fields;
+        }
 
-            imp.show();
+        //the stepped kernel1 and its two increments, cached propagators are
+        //counted by the cache
+        if (outputFixed) {
+            laneSize += 24 * size;
         }
 
-        if (intensitySelected) {
-            ImagePlus imp = new ImagePlus("Intensity" + namesSuffix, intensityStack);
-            if (outputFixed) {
-                imp.setCalibration(cal);
-            }
+        long lanes = Math.min(memoryBudget / laneSize,
+                Runtime.getRuntime().availableProcessors());
 
-            imp.show();
-        }
+        return (int) Math.max(1, Math.min(lanes, count));
+    }
 
-        if (realSelected) {
-            ImagePlus imp = new ImagePlus("Real" + namesSuffix, realStack);
-            if (outputFixed) {
-                imp.setCalibration(cal);
-            }
+    private boolean isFieldSelected() {
+        return depthTile > 0 || amplitudeSelected || intensitySelected
+                || realSelected || imaginarySelected
+                || (phaseSelected && !hasReference);
+    }
 
-            imp.show();
+    private boolean isReferenceSelected() {
+        return !isReduced() && phaseSelected && hasReference;
+    }
+
+    /**
+     * The depth map and the projections replace the stacks.
+     *
+     * @return true if only the reductions of the planes are kept
+     */
+    private boolean isReduced() {
+        return depthTile > 0 || projections;
+    }
+
+    private boolean isAmplitudeProjected() {
+        return projections && amplitudeSelected;
+    }
+
+    private boolean isIntensityProjected() {
+        return projections && intensitySelected;
+    }
+
+    private Workspace createWorkspace() {
+        if (outOfCore) {
+            return new Workspace(new File(System.getProperty("java.io.tmpdir")));
         }
 
-        if (imaginarySelected) {
-            ImagePlus imp = new ImagePlus("Imaginary" + namesSuffix, imaginaryStack);
-            if (outputFixed) {
-                imp.setCalibration(cal);
+        return new Workspace(largeField);
+    }
+
+    /**
+     * Adds the slices of one plane to the stacks, or writes them to the raw
+     * files.
+     *
+     * @param label slice label
+     * @param ips phase, amplitude, intensity, real and imaginary slices, null
+     * if not selected
+     * @throws IOException if a slice can not be written
+     */
+    private void addSlices(String label, ImageProcessor[] ips)
+            throws IOException {
+
+        if (writers != null) {
+            for (int i = 0; i < writers.length; i++) {
+                if (ips[i] != null) {
+                    writers[i].addSlice(label, ips[i]);
+                }
             }
 
-            imp.show();
+            return;
         }
 
-        IJ.showStatus("DLHM Batch mode: done!");
-        parent.setCursor(Cursor.getDefaultCursor());
+        ImageStack[] stacks = {phaseStack, amplitudeStack, intensityStack,
+            realStack, imaginaryStack};
+
+        for (int i = 0; i < stacks.length; i++) {
+            if (ips[i] != null) {
+                stacks[i].addSlice(label, ips[i]);
+            }
+        }
     }
 
     private float umToUnits(float n) {
@@ -355,30 +713,27 @@ public class BatchWorker extends SwingWorker<Void, Void> {
         return n;
     }
 
-    //Divide complex fields
-    //propagate hologram divided by propagate reference
-    private float[][] divideFields(float[][] hologramField, float[][] referenceField) {
-        float[][] outputField = new float[M][2 * N];
-        //Divide complex fields
-        //propagate hologram divided by propagate reference
-        for (int i = 0; i < M; i++) {
-            for (int j = 0; j < N; j++) {
-                float a = hologramField[i][2 * j];
-                float b = hologramField[i][2 * j + 1];
-                float c = referenceField[i][2 * j];
-                float d = referenceField[i][2 * j + 1];
-                outputField[i][2 * j] = (a * c + b * d) / (c * c + d * d);
-                outputField[i][2 * j + 1] = (b * c - a * d) / (c * c + d * d);
-            }
+    /**
+     * Returns the array for the next plane of an output. Outputs converted to
+     * 8 bit slices reuse the previous array.
+     *
+     * @param previous array of the previous plane, or null
+     * @param reused true if the slice does not keep the array
+     * @return M x N array
+     */
+    private float[] buffer(float[] previous, boolean reused) {
+        if (reused && previous != null) {
+            return previous;
         }
-        return outputField;
+
+        return new float[M * N];
     }
 
-    public void setField(float[][] field) {
+    public void setField(ComplexField field) {
         this.interpolatedField = field;
     }
 
-    public void setHologramAndReference(float[][] hologram, float[][] reference) {
+    public void setHologramAndReference(ComplexField hologram, ComplexField reference) {
         this.interpolatedHologram = hologram;
         this.interpolatedReference = reference;
         this.hasReference = true;
@@ -404,6 +759,107 @@ public class BatchWorker extends SwingWorker<Void, Void> {
         outputFixed = true;
     }
 
+    public void setPadFactor(float padFactor) {
+        this.padFactor = padFactor;
+    }
+
+    public void setLargeField(boolean largeField) {
+        this.largeField = largeField;
+    }
+
+    /**
+     * Keeps the padded FFT buffers in a scratch file in the temporary
+     * directory. Overrides the large-field mode.
+     *
+     * @param outOfCore out-of-core mode
+     */
+    public void setOutOfCore(boolean outOfCore) {
+        this.outOfCore = outOfCore;
+    }
+
+    /**
+     * Sets the memory the buffers of the planes reconstructed at once may
+     * take. With less than the buffers of two planes, the planes are
+     * reconstructed one after another.
+     *
+     * @param memoryBudget budget in bytes
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Writes the stacks to raw files as the planes are reconstructed, instead
+     * of keeping them in memory. The files are opened as virtual stacks.
+     *
+     * @param onDisk stacks on disk
+     */
+    public void setOnDisk(boolean onDisk) {
+        this.onDisk = onDisk;
+    }
+
+    public boolean isOnDisk() {
+        return onDisk;
+    }
+
+    /**
+     * Sets the directory of the raw files of the stacks on disk.
+     *
+     * @param directory stacks directory
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reconstructs the planes only when they are viewed, keeping the recent
+     * ones in memory. Overrides the stacks on disk.
+     *
+     * @param lazy lazy mode
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    /**
+     * Builds a depth map and an all-in-focus image instead of the stacks.
+     * Needs a fixed output size.
+     *
+     * @param tileSize tile size in pixels, 0 to reconstruct the stacks
+     * @param metric focus metric of the tiles
+     */
+    public void setDepthMap(int tileSize, FocusMetric metric) {
+        this.depthTile = tileSize;
+        this.depthMetric = metric;
+    }
+
+    /**
+     * Accumulates the max, min, mean and SD projections of the selected
+     * amplitude and intensity outputs instead of the stacks.
+     *
+     * @param projections true to project the outputs
+     */
+    public void setProjections(boolean projections) {
+        this.projections = projections;
+    }
+
+    /**
+     * Checks if there is an output to project.
+     *
+     * @return true if the amplitude or the intensity is selected
+     */
+    public boolean isProjectable() {
+        return amplitudeSelected || intensitySelected;
+    }
+
+    public boolean isOutputFixed() {
+        return outputFixed;
+    }
+
     public void setDistances(float zStart, float zEnd, float zStep, int planes) {
         this.zStart = zStart;
         this.zEnd = zEnd;
@@ -443,4 +899,285 @@ public class BatchWorker extends SwingWorker<Void, Void> {
         this.reconstructionUnits = reconstructionUnits;
     }
 
+    /**
+     * Reconstructs the planes {@code first}, {@code first + lanes}, ... with
+     * its own propagator, fields and work buffers. With a fixed output size
+     * the propagator is stepped {@code lanes} planes at a time.
+     * <p>
+     * The lazy mode uses two lanes as the sources of its planes, taken in any
+     * order: one for the viewed planes and one for the prefetched ones.
+     */
+    private class Lane implements PlaneSweep.Lane<ImageProcessor[]>,
+            PlaneCache.Source {
+
+        private final int first, lanes;
+        private final float[] distances;
+        private final TransferFunction transfer;
+
+        private KirchhoffHelmholtz propagator;
+        private ComplexField outputField;
+        private ComplexField outputFieldHologram, outputFieldReference;
+        private Workspace workspace;
+
+        //linear amplitude and intensity of the depth map and the projections
+        private float[] reducedAmplitude;
+        private float[] reducedIntensity;
+
+        //partial projections of the planes of this lane
+        private ZProjection amplitudeProjection;
+        private ZProjection intensityProjection;
+
+        //the outputs turned into 8 bit slices are written into the same
+        //arrays every plane, the float slices keep theirs
+        private float[] phaseBuffer;
+        private float[] amplitudeBuffer;
+        private float[] intensityBuffer;
+        private float[] realBuffer;
+        private float[] imaginaryBuffer;
+
+        Lane(int first, int lanes, float[] distances, TransferFunction transfer) {
+            this.first = first;
+            this.lanes = lanes;
+            this.distances = distances;
+            this.transfer = transfer;
+        }
+
+        /**
+         * Allocates the output fields, once for all the planes, and the work
+         * buffers.
+         */
+        @Override
+        public void allocate() {
+            if (isFieldSelected()) {
+                outputField = new ComplexField(M, N);
+            }
+
+            if (isReferenceSelected()) {
+                outputFieldHologram = new ComplexField(M, N);
+                outputFieldReference = new ComplexField(M, N);
+            }
+
+            if (isAmplitudeProjected()) {
+                amplitudeProjection = new ZProjection(M, N);
+            }
+            if (isIntensityProjected()) {
+                intensityProjection = new ZProjection(M, N);
+            }
+
+            workspace = createWorkspace();
+        }
+
+        @Override
+        public void dispose() {
+            //deletes the scratch file of the out-of-core mode
+            if (workspace != null) {
+                workspace.dispose();
+            }
+        }
+
+        @Override
+        public ImageProcessor[] getPlane(int p) {
+            //the planes are not taken in order, the propagator can not be
+            //stepped
+            if (outputFixed) {
+                propagator = null;
+            }
+
+            ImageProcessor[] ips = reconstruct(p);
+
+            //deletes the scratch file of the out-of-core mode until the next
+            //plane
+            workspace.dispose();
+
+            return ips;
+        }
+
+        @Override
+        public ImageProcessor[] reconstruct(int p) {
+            float z = distances[p];
+            float dxOut = BatchWorker.this.dxOut;
+            float dyOut = BatchWorker.this.dyOut;
+
+            if (!outputFixed) {
+                dxOut = dx * z / L;
+                dyOut = dy * z / L;
+
+                if (z == 0) {
+                    dxOut = dx / L;
+                    dyOut = dy / L;
+                }
+            }
+
+            if (outputFixed) {
+                //consecutive planes of the lane only differ by a phase
+                //rotation of kernel1, so one propagator is stepped through
+                //the whole sweep
+                if (propagator == null) {
+                    propagator = new KirchhoffHelmholtz(transfer, z);
+                } else {
+                    propagator.stepZ(lanes * zStep);
+                }
+            } else {
+                propagator = PropagatorCache.getInstance().getKirchhoffHelmholtz(M,
+                        N, lambda, z, L, dx, dy, dxOut, dyOut, padFactor);
+            }
+
+            if (outputField != null) {
+
+                outputField.copyFrom(interpolatedField);
+
+                propagator.diffractWithoutOutputPhase(
+                        new ComplexField[]{outputField}, workspace);
+            }
+
+            if (outputFieldHologram != null) {
+
+                //copies the interpolated field into the output field arrays
+                outputFieldHologram.copyFrom(interpolatedHologram);
+                outputFieldReference.copyFrom(interpolatedReference);
+
+                propagator.diffractWithoutOutputPhase(new ComplexField[]{
+                    outputFieldHologram, outputFieldReference}, workspace);
+            }
+
+            String label = getLabel(z);
+
+            //one pass extracts every selected output and applies the output
+            //plane phase
+            OutputExtractor extractor = new OutputExtractor(
+                    propagator.getTransferFunction());
+
+            if (isReduced()) {
+                reduce(z, extractor);
+
+                labels[p] = label;
+                return new ImageProcessor[5];
+            }
+
+            float[] phase = null;
+            float[] amplitude = null;
+            float[] intensity = null;
+            float[] real = null;
+            float[] imaginary = null;
+
+            if (phaseSelected) {
+                phase = phaseBuffer = buffer(phaseBuffer, phaseByteSelected);
+            }
+            if (amplitudeSelected) {
+                amplitude = amplitudeBuffer = buffer(amplitudeBuffer, true);
+            }
+            if (intensitySelected) {
+                intensity = intensityBuffer = buffer(intensityBuffer, true);
+            }
+            if (realSelected) {
+                real = realBuffer = buffer(realBuffer, realByteSelected);
+            }
+            if (imaginarySelected) {
+                imaginary = imaginaryBuffer = buffer(imaginaryBuffer,
+                        imaginaryByteSelected);
+            }
+
+            if (outputFieldHologram != null) {
+                extractor.extract(outputFieldHologram, outputFieldReference,
+                        phase, null, null, null, null);
+            }
+
+            if (outputField != null) {
+                extractor.extract(outputField, null, hasReference ? null : phase,
+                        amplitude, intensity, real, imaginary);
+            }
+
+            ImageProcessor[] ips = new ImageProcessor[5];
+
+            if (phaseSelected) {
+                ImageProcessor ip = new FloatProcessor(M, N, phase);
+                if (!hasReference) {
+                    ip.setMinAndMax(-Math.PI, Math.PI);
+                }
+
+                if (phaseByteSelected) {
+                    ip = ip.convertToByteProcessor();
+                }
+
+                ips[0] = ip;
+            }
+
+            if (amplitudeSelected) {
+                ImageProcessor ip = new FloatProcessor(M, N, amplitude);
+                if (amplitudeLogSelected) {
+                    ip.log();
+                }
+
+                ips[1] = ip.convertToByteProcessor();
+            }
+
+            if (intensitySelected) {
+                ImageProcessor ip = new FloatProcessor(M, N, intensity);
+                if (intensityLogSelected) {
+                    ip.log();
+                }
+
+                ips[2] = ip.convertToByteProcessor();
+            }
+
+            if (realSelected) {
+                ImageProcessor ip = new FloatProcessor(M, N, real);
+                if (realByteSelected) {
+                    ip = ip.convertToByteProcessor();
+                }
+
+                ips[3] = ip;
+            }
+
+            if (imaginarySelected) {
+                ImageProcessor ip = new FloatProcessor(M, N, imaginary);
+                if (imaginaryByteSelected) {
+                    ip = ip.convertToByteProcessor();
+                }
+
+                ips[4] = ip;
+            }
+
+            labels[p] = label;
+            return ips;
+        }
+
+        /**
+         * Adds the linear amplitude and intensity of the plane to the depth
+         * map and to the projections of this lane.
+         *
+         * @param z distance of the plane
+         * @param extractor output extractor of the plane
+         */
+        private void reduce(float z, OutputExtractor extractor) {
+            float[] amplitude = null;
+            float[] intensity = null;
+
+            if (depthMap != null || amplitudeProjection != null) {
+                if (reducedAmplitude == null) {
+                    reducedAmplitude = new float[M * N];
+                }
+                amplitude = reducedAmplitude;
+            }
+            if (intensityProjection != null) {
+                if (reducedIntensity == null) {
+                    reducedIntensity = new float[M * N];
+                }
+                intensity = reducedIntensity;
+            }
+
+            extractor.extract(outputField, null, null, amplitude, intensity,
+                    null, null);
+
+            if (depthMap != null) {
+                depthMap.add(z, amplitude);
+            }
+            if (amplitudeProjection != null) {
+                amplitudeProjection.add(amplitude);
+            }
+            if (intensityProjection != null) {
+                intensityProjection.add(intensity);
+            }
+        }
+    }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.rec;
+
+import ij.process.ImageProcessor;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Least recently used cache of reconstructed planes. A plane is only
+ * reconstructed the first time it is requested, and the neighbours of the
+ * requested plane are reconstructed in the background, ahead in the direction
+ * the planes are being browsed.
+ * <p>
+ * The planes are reconstructed outside the lock of the cache, the requested
+ * planes with one source and the prefetched planes with another, so a request
+ * only waits for its own plane. A request for a plane being prefetched waits
+ * for that reconstruction instead of starting another one.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+class PlaneCache {
+
+    /**
+     * Reconstructs the planes of the cache, one at a time.
+     */
+    interface Source {
+
+        /**
+         * Reconstructs a plane.
+         *
+         * @param plane plane index
+         * @return phase, amplitude, intensity, real and imaginary slices, null
+         * if not selected
+         */
+        ImageProcessor[] getPlane(int plane);
+    }
+
+    //planes reconstructed ahead of the requested plane
+    private static final int PREFETCH = 2;
+
+    /**
+     * Minimum capacity, the requested plane and the planes prefetched on both
+     * sides of it.
+     */
+    static final int MIN_CAPACITY = 2 * PREFETCH + 2;
+
+    private final Source source;
+    private final Source prefetchSource;
+    private final int planes;
+    private final Map<Integer, ImageProcessor[]> cache;
+
+    //planes being reconstructed, guarded by this like the cache
+    private final Map<Integer, FutureTask<ImageProcessor[]>> loading;
+
+    //single background thread, stops when idle
+    private final ThreadPoolExecutor prefetcher;
+
+    //last requested plane
+    private int lastPlane = -1;
+    private volatile int latestPlane;
+
+    /**
+     * Creates the cache.
+     *
+     * @param source source of the requested planes, only used by one thread
+     * at a time
+     * @param prefetchSource source of the prefetched planes, only used by the
+     * prefetch thread
+     * @param planes number of planes
+     * @param capacity planes kept in memory, at least {@link #MIN_CAPACITY}
+     */
+    PlaneCache(Source source, Source prefetchSource, int planes,
+            final int capacity) {
+
+        if (capacity < MIN_CAPACITY) {
+            throw new IllegalArgumentException("Capacity must be at least "
+                    + MIN_CAPACITY + ".");
+        }
+
+        this.source = source;
+        this.prefetchSource = prefetchSource;
+        this.planes = planes;
+
+        cache = new LinkedHashMap<Integer, ImageProcessor[]>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor[]> eldest) {
+                return size() > capacity;
+            }
+        };
+        loading = new HashMap<Integer, FutureTask<ImageProcessor[]>>();
+
+        prefetcher = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DLHM plane prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        prefetcher.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns a plane, reconstructing it if it is not in the cache, and
+     * starts the reconstruction of its neighbours. The slices must not be
+     * modified.
+     *
+     * @param plane plane index
+     * @return phase, amplitude, intensity, real and imaginary slices, null if
+     * not selected
+     */
+    ImageProcessor[] getPlane(int plane) {
+        if (plane < 0 || plane >= planes) {
+            throw new IllegalArgumentException("Plane " + plane
+                    + " out of range.");
+        }
+
+        prefetch(plane);
+
+        return load(plane);
+    }
+
+    /**
+     * Returns the number of planes.
+     *
+     * @return planes
+     */
+    int getSize() {
+        return planes;
+    }
+
+    private ImageProcessor[] load(int plane) {
+        while (true) {
+            FutureTask<ImageProcessor[]> task;
+            boolean started = false;
+
+            synchronized (this) {
+                ImageProcessor[] ips = cache.get(plane);
+                if (ips != null) {
+                    return ips;
+                }
+
+                task = loading.get(plane);
+                if (task == null) {
+                    task = createTask(plane, source);
+                    loading.put(plane, task);
+                    started = true;
+                }
+            }
+
+            if (started) {
+                //the requests can come from several threads
+                synchronized (source) {
+                    task.run();
+                }
+            }
+
+            try {
+                return task.get();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while "
+                        + "reconstructing plane " + plane + ".");
+            } catch (ExecutionException exc) {
+                //a failed prefetch is tried again by the request
+                if (started) {
+                    Throwable cause = exc.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the reconstruction of a plane. When it ends the plane goes to
+     * the cache and leaves the planes being reconstructed.
+     */
+    private FutureTask<ImageProcessor[]> createTask(final int plane,
+            final Source taskSource) {
+
+        return new FutureTask<ImageProcessor[]>(new Callable<ImageProcessor[]>() {
+
+            @Override
+            public ImageProcessor[] call() {
+                ImageProcessor[] ips = null;
+                try {
+                    ips = taskSource.getPlane(plane);
+                    return ips;
+                } finally {
+                    synchronized (PlaneCache.this) {
+                        if (ips != null) {
+                            cache.put(plane, ips);
+                        }
+                        loading.remove(plane);
+                    }
+                }
+            }
+        });
+    }
+
+    private void prefetch(int plane) {
+        int direction;
+        synchronized (this) {
+            direction = plane >= lastPlane ? 1 : -1;
+            lastPlane = plane;
+        }
+
+        latestPlane = plane;
+
+        //the planes queued for the previous request are not needed anymore
+        prefetcher.getQueue().clear();
+
+        //ahead first, then the plane behind
+        for (int i = 1; i <= PREFETCH; i++) {
+            submit(plane + i * direction);
+        }
+        submit(plane - direction);
+    }
+
+    private void submit(final int plane) {
+        if (plane < 0 || plane >= planes) {
+            return;
+        }
+
+        prefetcher.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                FutureTask<ImageProcessor[]> task;
+
+                synchronized (PlaneCache.this) {
+                    //skips the planes left behind by fast browsing
+                    if (Math.abs(plane - latestPlane) > PREFETCH
+                            || cache.containsKey(plane)
+                            || loading.containsKey(plane)) {
+                        return;
+                    }
+
+                    task = createTask(plane, prefetchSource);
+                    loading.put(plane, task);
+                }
+
+                //a failed plane is reconstructed again when requested
+                task.run();
+            }
+        });
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.rec;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+ * Virtual stack of one output of the planes of a {@link PlaneCache}. Each
+ * slice is reconstructed the first time it is shown.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+class PlaneStack extends VirtualStack {
+
+    private final PlaneCache cache;
+    private final int output;
+    private final String[] labels;
+
+    /**
+     * Creates the stack.
+     *
+     * @param width slices width
+     * @param height slices height
+     * @param bitDepth 8 or 32
+     * @param cache planes cache
+     * @param output index of the output in the slices of a plane
+     * @param labels slice labels, one per plane
+     */
+    PlaneStack(int width, int height, int bitDepth, PlaneCache cache,
+            int output, String[] labels) {
+
+        super(width, height);
+        setBitDepth(bitDepth);
+
+        this.cache = cache;
+        this.output = output;
+        this.labels = labels;
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        //the cached slice is kept unchanged
+        return cache.getPlane(n - 1)[output].duplicate();
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        return getProcessor(n).getPixels();
+    }
+
+    @Override
+    public int getSize() {
+        return cache.getSize();
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return labels[n - 1];
+    }
+}
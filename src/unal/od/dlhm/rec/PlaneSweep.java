@@ -0,0 +1,284 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.rec;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reconstructs the planes of a sweep with several lanes and hands them to a
+ * writer in z order. Lane {@code t} takes every {@code lanes}-th plane from
+ * plane {@code t}, and a lane can only get {@code window} planes ahead of the
+ * writer, so the planes waiting to be written are bounded.
+ * <p>
+ * If a lane fails the other lanes are stopped and the exception of the failed
+ * lane is thrown by {@link #run(Lane[], Writer)}.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ *
+ * @param <T> plane type
+ */
+class PlaneSweep<T> {
+
+    /**
+     * Reconstructs the planes of one lane, in increasing order.
+     *
+     * @param <T> plane type
+     */
+    interface Lane<T> {
+
+        /**
+         * Allocates the buffers of the lane, before its first plane.
+         */
+        void allocate();
+
+        /**
+         * Reconstructs a plane.
+         *
+         * @param plane plane index
+         * @return the plane, not null
+         * @throws Exception if the plane can not be reconstructed
+         */
+        T reconstruct(int plane) throws Exception;
+
+        /**
+         * Releases the buffers of the lane, after its last plane or a failure.
+         */
+        void dispose();
+    }
+
+    /**
+     * Takes the planes in z order.
+     *
+     * @param <T> plane type
+     */
+    interface Writer<T> {
+
+        /**
+         * Writes a plane.
+         *
+         * @param plane plane index
+         * @param value the plane
+         * @throws Exception if the plane can not be written
+         */
+        void write(int plane, T value) throws Exception;
+    }
+
+    private final int count;
+    private final int window;
+
+    //planes reconstructed and not written yet
+    private final Object[] planes;
+    private final CountDownLatch[] finished;
+
+    //planes written, and the failure of any lane
+    private int written;
+    private boolean failed;
+    private final Object windowLock = new Object();
+
+    /**
+     * Creates a sweep.
+     *
+     * @param count number of planes
+     * @param window planes a lane may reconstruct ahead of the writer
+     */
+    PlaneSweep(int count, int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be positive.");
+        }
+
+        this.count = count;
+        this.window = window;
+
+        planes = new Object[count];
+        finished = new CountDownLatch[count];
+        for (int p = 0; p < count; p++) {
+            finished[p] = new CountDownLatch(1);
+        }
+    }
+
+    /**
+     * Reconstructs all the planes and writes them in z order. Returns when
+     * every plane is written.
+     *
+     * @param lanes lanes, one thread each
+     * @param writer writer of the planes
+     * @throws Exception the exception of the first failed lane, as the cause
+     * of an {@link ExecutionException}, or of the writer
+     */
+    @SuppressWarnings("unchecked")
+    void run(Lane<T>[] lanes, Writer<T> writer) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(lanes.length);
+        Future<?>[] futures = new Future<?>[lanes.length];
+
+        try {
+            for (int t = 0; t < lanes.length; t++) {
+                futures[t] = executor.submit(new Task(lanes[t], t,
+                        lanes.length));
+            }
+
+            for (int p = 0; p < count; p++) {
+                finished[p].await();
+
+                T plane = (T) planes[p];
+                if (plane == null) {
+                    //the lane of this plane failed or was stopped. The lanes
+                    //are stopped before their exceptions are taken, they
+                    //could be waiting for this plane to be written
+                    fail();
+                    executor.shutdownNow();
+
+                    join(futures, p % lanes.length);
+
+                    throw new IllegalStateException("Plane " + p
+                            + " was not reconstructed.");
+                }
+
+                planes[p] = null;
+                writer.write(p, plane);
+                planeWritten();
+            }
+
+            //the lanes release their buffers after the last plane
+            join(futures, 0);
+        } finally {
+            fail();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for all the lanes, from the given one.
+     *
+     * @param futures futures of the lanes
+     * @param first lane joined first, its exception is preferred
+     * @throws ExecutionException the exception of the first failed lane
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void join(Future<?>[] futures, int first)
+            throws ExecutionException, InterruptedException {
+
+        ExecutionException failure = null;
+
+        for (int k = 0; k < futures.length; k++) {
+            try {
+                futures[(first + k) % futures.length].get();
+            } catch (ExecutionException exc) {
+                if (failure == null) {
+                    failure = exc;
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the lanes waiting for the writer.
+     */
+    private void fail() {
+        synchronized (windowLock) {
+            failed = true;
+            windowLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the writer is close enough to a plane for it to be
+     * reconstructed.
+     *
+     * @param p plane
+     * @return false if the sweep failed or the thread was interrupted
+     */
+    private boolean awaitWindow(int p) {
+        synchronized (windowLock) {
+            while (p >= written + window) {
+                if (failed || Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+
+                try {
+                    windowLock.wait();
+                } catch (InterruptedException exc) {
+                    return false;
+                }
+            }
+
+            return !failed;
+        }
+    }
+
+    private void planeWritten() {
+        synchronized (windowLock) {
+            written++;
+            windowLock.notifyAll();
+        }
+    }
+
+    private class Task implements Callable<Void> {
+
+        private final Lane<T> lane;
+        private final int first;
+        private final int step;
+
+        Task(Lane<T> lane, int first, int step) {
+            this.lane = lane;
+            this.first = first;
+            this.step = step;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            try {
+                lane.allocate();
+
+                for (int p = first; p < count; p += step) {
+                    if (Thread.currentThread().isInterrupted()
+                            || !awaitWindow(p)) {
+                        break;
+                    }
+
+                    planes[p] = lane.reconstruct(p);
+                    finished[p].countDown();
+                }
+            } catch (Exception exc) {
+                fail();
+                throw exc;
+            } catch (Error err) {
+                fail();
+                throw err;
+            } finally {
+                //on a failure the writer is woken up to find it
+                for (int p = first; p < count; p += step) {
+                    finished[p].countDown();
+                }
+
+                lane.dispose();
+            }
+
+            return null;
+        }
+    }
+}
@@ -15,12 +15,15 @@
  */
 package unal.od.dlhm.rec;
 
+import ij.IJ;
 import ij.ImageListener;
 import ij.ImagePlus;
 import ij.WindowManager;
+import ij.gui.Roi;
 import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 import java.awt.Frame;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
@@ -36,6 +39,10 @@ import javax.swing.JOptionPane;
 import javax.swing.JRadioButton;
 import javax.swing.JTextField;
 import unal.od.dlhm.PreferencesKeys;
+import unal.od.dlhm.diffraction.ComplexField;
+import unal.od.dlhm.diffraction.FocusMetric;
+import unal.od.dlhm.diffraction.KirchhoffHelmholtz;
+import unal.od.dlhm.diffraction.PaddingPlanner;
 
 /**
  *
@@ -107,11 +114,11 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
     private int M, N;
 
     //array for the interpolated field (useful for the +/- and batch operations)
-    private float[][] interpolatedField;
+    private ComplexField interpolatedField;
 
     //arrays for the interpolated hologram and reference for phase reconstruction
     //(useful for the +/- and batch operations)
-    private float[][] interpolatedHologram, interpolatedReference;
+    private ComplexField interpolatedHologram, interpolatedReference;
      
     
     //arrays with the current opened images information
@@ -168,6 +175,21 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
     private int contrastType;
     private int averageDimension;
 
+    //fft padding
+    private float padFactor;
+    private boolean largeField;
+    private boolean outOfCore;
+    private int batchMemory;
+    private boolean batchOnDisk;
+    private boolean batchLazy;
+
+    //region of interest
+    private boolean roiEnabled;
+    private float roiZoom;
+
+    //propagator of the last +/- step with a fixed output size
+    private KirchhoffHelmholtz stepPropagator;
+
     //last outputs used
     private boolean phaseEnabled;
     private boolean amplitudeEnabled;
@@ -316,6 +338,9 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
         //scaling
         loadScalingPrefs();
 
+        //performance
+        loadPerformancePrefs();
+
         //parameters strings for text fields
         loadParameters();
     }
@@ -442,6 +467,122 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
         imaginaryByteSelected = pref.getBoolean(REC_IMAGINARY_8_BIT, false);
     }
 
+    /**
+     * Loads performance options.
+     */
+    private void loadPerformancePrefs() {
+        padFactor = pref.getFloat(REC_PAD_FACTOR,
+                PaddingPlanner.DEFAULT_PAD_FACTOR);
+        largeField = pref.getBoolean(REC_LARGE_FIELD, false);
+        outOfCore = pref.getBoolean(REC_OUT_OF_CORE, false);
+        batchMemory = pref.getInt(REC_BATCH_MEMORY,
+                BatchWorker.DEFAULT_MEMORY_BUDGET_MB);
+        batchOnDisk = pref.getBoolean(REC_BATCH_ON_DISK, false);
+        batchLazy = pref.getBoolean(REC_BATCH_LAZY, false);
+        roiEnabled = pref.getBoolean(REC_ROI_ENABLED, false);
+        roiZoom = pref.getFloat(REC_ROI_ZOOM, 1);
+    }
+
+    /**
+     * Passes the area selection of the current image to the worker when the
+     * region of interest is enabled. The current image must have the output
+     * size, M x N; otherwise the full plane is reconstructed.
+     *
+     * @param worker
+     */
+    private void setRegion(ReconstructionWorker worker) {
+        if (!roiEnabled) {
+            return;
+        }
+
+        ImagePlus imp = WindowManager.getCurrentImage();
+        Roi roi = (imp == null) ? null : imp.getRoi();
+
+        if (roi == null || !roi.isArea() || imp.getWidth() != M
+                || imp.getHeight() != N) {
+            IJ.showStatus("No selection on a " + M + " x " + N
+                    + " image, reconstructing the full plane.");
+            return;
+        }
+
+        Rectangle bounds = roi.getBounds().intersection(new Rectangle(M, N));
+        if (bounds.isEmpty()) {
+            IJ.showStatus("The selection is outside the image, reconstructing the full plane.");
+            return;
+        }
+
+        worker.setRegion(bounds, roiZoom);
+    }
+
+    /**
+     * Sets the propagator the next +/- step continues from. Null if the next
+     * step needs a new propagator.
+     *
+     * @param propagator propagator of the last step
+     */
+    public void setStepPropagator(KirchhoffHelmholtz propagator) {
+        stepPropagator = propagator;
+    }
+
+    /**
+     * Starts the search of the focus plane between two distances, with the
+     * parameters of the last reconstruction.
+     *
+     * @param zStart first distance in um
+     * @param zEnd last distance in um
+     * @param tolerance distance resolution in um
+     * @param metric focus metric
+     * @return true if the search was started
+     */
+    public boolean autofocus(float zStart, float zEnd, float tolerance,
+            FocusMetric metric) {
+
+        ComplexField field = (interpolatedField != null) ? interpolatedField
+                : interpolatedHologram;
+
+        if (field == null) {
+            JOptionPane.showMessageDialog(this, "Please reconstruct the "
+                    + "hologram first.", "Error", JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+
+        if (!(zEnd > zStart)) {
+            Toolkit.getDefaultToolkit().beep();
+            JOptionPane.showMessageDialog(this, "The starting and ending "
+                    + "distances must be different.", "Error",
+                    JOptionPane.ERROR_MESSAGE);
+            return false;
+        }
+
+        AutofocusWorker worker = new AutofocusWorker(this);
+        worker.setPadFactor(padFactor);
+        worker.setLargeField(largeField);
+        worker.setOutOfCore(outOfCore);
+
+        worker.setField(field);
+        worker.setParameters(lambdaUmLast, lUmLast, inputWUmLast, inputHUmLast);
+        worker.setDistances(zStart, zEnd, tolerance);
+        worker.setMetric(metric);
+        worker.setInfo(hologramTitle, reconstructionUnits);
+
+        worker.execute();
+
+        return true;
+    }
+
+    /**
+     * Sets the reconstruction distance field.
+     *
+     * @param zUm distance in um
+     */
+    public void setReconstructionDistance(float zUm) {
+        this.zUm = zUm;
+        zUser = umToUnits(zUm, reconstructionUnits);
+        zSet = true;
+
+        zField.setText(df.format(zUser));
+    }
+
     /**
      * Updates units labels.
      */
@@ -471,6 +612,13 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
         loadScalingPrefs();
     }
 
+    /**
+     * Updates performance options.
+     */
+    public void updatePerformancePrefs() {
+        loadPerformancePrefs();
+    }
+
     /**
      * Posts a message (s) on the log. If useSeparator is true prints a
      * separator before the message.
@@ -935,11 +1083,11 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
         return cal;
     }
 
-    public void setInterpolatedField(float[][] field) {
+    public void setInterpolatedField(ComplexField field) {
         interpolatedField = field;
     }
 
-    public void setInterpolatedHologramAndReference(float[][] hologram, float[][] reference) {
+    public void setInterpolatedHologramAndReference(ComplexField hologram, ComplexField reference) {
         interpolatedHologram = hologram;
         interpolatedReference = reference;
     }
@@ -1629,6 +1777,9 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
         boolean increment = (source == incBtn);
 
         ReconstructionWorker worker = new ReconstructionWorker(this);
+        worker.setPadFactor(padFactor);
+        worker.setLargeField(largeField);
+        worker.setOutOfCore(outOfCore);
 
         worker.setField(interpolatedField);
         if (phaseEnabled && hasRef) {
@@ -1641,6 +1792,16 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
             return;
         }
 
+        setRegion(worker);
+
+        //with a fixed output size the previous propagator is stepped
+        if (manualRadio.isSelected()) {
+            worker.setStep(stepPropagator, increment ? stepUm : -stepUm);
+        }
+
+        //the stepped propagator can not be used by two workers at once
+        enableAfterPropagationOpt(false);
+
         worker.execute();
     }//GEN-LAST:event_incAndDecBtnActionPerformed
 
@@ -1652,6 +1813,12 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
         }
 
         BatchWorker worker = new BatchWorker(this);
+        worker.setPadFactor(padFactor);
+        worker.setLargeField(largeField);
+        worker.setOutOfCore(outOfCore);
+        worker.setMemoryBudget(batchMemory * 1024L * 1024L);
+        worker.setOnDisk(batchOnDisk);
+        worker.setLazy(batchLazy);
 
         worker.setField(interpolatedField);
         if (phaseEnabled && hasRef) {
@@ -1765,6 +1932,9 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
 
     private void reconstructBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_reconstructBtnActionPerformed
         ReconstructionWorker worker = new ReconstructionWorker(this);
+        worker.setPadFactor(padFactor);
+        worker.setLargeField(largeField);
+        worker.setOutOfCore(outOfCore);
 
         int holoIdx = hologramCombo.getSelectedIndex();
         int refIdx = referenceCombo.getSelectedIndex();
@@ -1773,6 +1943,8 @@ public class ReconstructionFrame extends javax.swing.JFrame implements ImageList
         if (!success) {
             return;
         }
+
+        setRegion(worker);
         
         // PROBLEM NUM: SET_PARAMETERS NEED TO BE CALLED AFTER SET_SIZE AND BEFORE SET_HOLOGRAM
         
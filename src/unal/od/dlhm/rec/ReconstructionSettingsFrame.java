@@ -21,6 +21,8 @@ import java.util.prefs.Preferences;
 import javax.swing.JOptionPane;
 import javax.swing.JTextField;
 import unal.od.dlhm.PreferencesKeys;
+import unal.od.dlhm.diffraction.PaddingPlanner;
+import unal.od.dlhm.diffraction.Workspace;
 
 /**
  *
@@ -63,6 +65,17 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
     private boolean realByteSelected;
     private boolean imaginaryByteSelected;
 
+    //performance
+    private float padFactor;
+    private boolean largeFieldSelected;
+    private boolean largeFieldAvailable;
+    private boolean outOfCoreSelected;
+    private int batchMemory;
+    private boolean batchOnDiskSelected;
+    private boolean batchLazySelected;
+    private boolean roiSelected;
+    private float roiZoom;
+
     private final Preferences pref;
 
     private final ReconstructionFrame parent;
@@ -113,6 +126,23 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
         intensityByteSelected = pref.getBoolean(REC_INTENSITY_8_BIT, true);
         realByteSelected = pref.getBoolean(REC_REAL_8_BIT, false);
         imaginaryByteSelected = pref.getBoolean(REC_IMAGINARY_8_BIT, false);
+
+        //fft padding
+        padFactor = pref.getFloat(REC_PAD_FACTOR,
+                PaddingPlanner.DEFAULT_PAD_FACTOR);
+
+        //memory
+        largeFieldSelected = pref.getBoolean(REC_LARGE_FIELD, false);
+        largeFieldAvailable = Workspace.isLargeFieldAvailable();
+        outOfCoreSelected = pref.getBoolean(REC_OUT_OF_CORE, false);
+        batchMemory = pref.getInt(REC_BATCH_MEMORY,
+                BatchWorker.DEFAULT_MEMORY_BUDGET_MB);
+        batchOnDiskSelected = pref.getBoolean(REC_BATCH_ON_DISK, false);
+        batchLazySelected = pref.getBoolean(REC_BATCH_LAZY, false);
+
+        //region of interest
+        roiSelected = pref.getBoolean(REC_ROI_ENABLED, false);
+        roiZoom = pref.getFloat(REC_ROI_ZOOM, 1);
     }
 
     private int unitToIdx(String unit) {
@@ -182,6 +212,22 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
         intensityByteChk = new javax.swing.JCheckBox();
         realByteChk = new javax.swing.JCheckBox();
         imaginaryByteChk = new javax.swing.JCheckBox();
+        performancePanel = new javax.swing.JPanel();
+        paddingPanel = new javax.swing.JPanel();
+        padFactorLabel = new javax.swing.JLabel();
+        padFactorField = new javax.swing.JTextField();
+        memoryPanel = new javax.swing.JPanel();
+        largeFieldChk = new javax.swing.JCheckBox();
+        outOfCoreChk = new javax.swing.JCheckBox();
+        batchMemoryLabel = new javax.swing.JLabel();
+        batchMemoryField = new javax.swing.JTextField();
+        batchOnDiskChk = new javax.swing.JCheckBox();
+        batchLazyChk = new javax.swing.JCheckBox();
+        roiPanel = new javax.swing.JPanel();
+        roiChk = new javax.swing.JCheckBox();
+        zoomLabel = new javax.swing.JLabel();
+        zoomField = new javax.swing.JTextField();
+        applyPerformanceBtn = new javax.swing.JButton();
         cancelBtn = new javax.swing.JButton();
         okBtn = new javax.swing.JButton();
 
@@ -738,6 +784,213 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
 
         settingsPane.addTab("Scaling", scalingPanel);
 
+        performancePanel.setMaximumSize(new java.awt.Dimension(214, 419));
+        performancePanel.setMinimumSize(new java.awt.Dimension(214, 419));
+        performancePanel.setPreferredSize(new java.awt.Dimension(214, 419));
+
+        paddingPanel.setBorder(javax.swing.BorderFactory.createTitledBorder("FFT padding"));
+        paddingPanel.setMaximumSize(new java.awt.Dimension(194, 62));
+        paddingPanel.setMinimumSize(new java.awt.Dimension(194, 62));
+        paddingPanel.setPreferredSize(new java.awt.Dimension(194, 62));
+
+        padFactorLabel.setText("Pad factor:");
+
+        padFactorField.setText("" + padFactor);
+        padFactorField.setToolTipText("Sets the FFT padding as a multiple of the image size, between 1 and 2. Values from 1.5 up give exact results, lower values are faster but the borders of the reconstruction may show aliasing.");
+        padFactorField.setMaximumSize(new java.awt.Dimension(59, 20));
+        padFactorField.setMinimumSize(new java.awt.Dimension(59, 20));
+        padFactorField.addFocusListener(new java.awt.event.FocusAdapter() {
+            public void focusGained(java.awt.event.FocusEvent evt) {
+                textFieldFocusGained(evt);
+            }
+        });
+
+        javax.swing.GroupLayout paddingPanelLayout = new javax.swing.GroupLayout(paddingPanel);
+        paddingPanel.setLayout(paddingPanelLayout);
+        paddingPanelLayout.setHorizontalGroup(
+            paddingPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(paddingPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(padFactorLabel)
+                .addGap(51, 51, 51)
+                .addComponent(padFactorField, javax.swing.GroupLayout.PREFERRED_SIZE, 59, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addContainerGap())
+        );
+        paddingPanelLayout.setVerticalGroup(
+            paddingPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(paddingPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(paddingPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(padFactorLabel)
+                    .addComponent(padFactorField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap())
+        );
+
+        memoryPanel.setBorder(javax.swing.BorderFactory.createTitledBorder("Memory"));
+        memoryPanel.setMaximumSize(new java.awt.Dimension(194, 140));
+        memoryPanel.setMinimumSize(new java.awt.Dimension(194, 140));
+        memoryPanel.setPreferredSize(new java.awt.Dimension(194, 140));
+
+        largeFieldChk.setSelected(largeFieldSelected);
+        largeFieldChk.setText("Off-heap FFT buffers");
+        largeFieldChk.setToolTipText("Keeps the padded FFT buffers outside the Java heap, for holograms too large for the ImageJ memory.");
+        largeFieldChk.setEnabled(largeFieldAvailable);
+        largeFieldChk.setMargin(new java.awt.Insets(0, 0, 0, 0));
+
+        outOfCoreChk.setSelected(outOfCoreSelected);
+        outOfCoreChk.setText("Out-of-core (scratch files)");
+        outOfCoreChk.setToolTipText("Keeps the padded FFT buffers in a memory-mapped file of the temporary directory, for holograms too large for the computer memory. Slower than the other modes.");
+        outOfCoreChk.setMargin(new java.awt.Insets(0, 0, 0, 0));
+
+        batchMemoryLabel.setText("Batch memory (MB):");
+
+        batchMemoryField.setText("" + batchMemory);
+        batchMemoryField.setToolTipText("Memory the batch mode may use to reconstruct several planes at once, one per processor. With 0 the planes are reconstructed one after another.");
+        batchMemoryField.setMaximumSize(new java.awt.Dimension(59, 20));
+        batchMemoryField.setMinimumSize(new java.awt.Dimension(59, 20));
+        batchMemoryField.addFocusListener(new java.awt.event.FocusAdapter() {
+            public void focusGained(java.awt.event.FocusEvent evt) {
+                textFieldFocusGained(evt);
+            }
+        });
+
+        batchOnDiskChk.setSelected(batchOnDiskSelected);
+        batchOnDiskChk.setText("Batch stacks on disk");
+        batchOnDiskChk.setToolTipText("Writes each plane of the batch mode to a raw file as soon as it is reconstructed and opens the stacks as virtual stacks, so the number of planes is not limited by the ImageJ memory.");
+        batchOnDiskChk.setMargin(new java.awt.Insets(0, 0, 0, 0));
+
+        batchLazyChk.setSelected(batchLazySelected);
+        batchLazyChk.setText("Batch planes on view");
+        batchLazyChk.setToolTipText("Reconstructs each plane of the batch mode only when it is shown, keeping the recent ones in the batch memory and preparing the next ones in the background.");
+        batchLazyChk.setMargin(new java.awt.Insets(0, 0, 0, 0));
+
+        javax.swing.GroupLayout memoryPanelLayout = new javax.swing.GroupLayout(memoryPanel);
+        memoryPanel.setLayout(memoryPanelLayout);
+        memoryPanelLayout.setHorizontalGroup(
+            memoryPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(memoryPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(memoryPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(largeFieldChk)
+                    .addComponent(outOfCoreChk)
+                    .addComponent(batchOnDiskChk)
+                    .addComponent(batchLazyChk)
+                    .addGroup(memoryPanelLayout.createSequentialGroup()
+                        .addComponent(batchMemoryLabel)
+                        .addGap(13, 13, 13)
+                        .addComponent(batchMemoryField, javax.swing.GroupLayout.PREFERRED_SIZE, 59, javax.swing.GroupLayout.PREFERRED_SIZE)))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+        memoryPanelLayout.setVerticalGroup(
+            memoryPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(memoryPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(largeFieldChk)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(outOfCoreChk)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(memoryPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(batchMemoryLabel)
+                    .addComponent(batchMemoryField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(batchOnDiskChk)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(batchLazyChk)
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+
+        roiPanel.setBorder(javax.swing.BorderFactory.createTitledBorder("Region of interest"));
+        roiPanel.setMaximumSize(new java.awt.Dimension(194, 80));
+        roiPanel.setMinimumSize(new java.awt.Dimension(194, 80));
+        roiPanel.setPreferredSize(new java.awt.Dimension(194, 80));
+
+        roiChk.setSelected(roiSelected);
+        roiChk.setText("Reconstruct the ImageJ ROI");
+        roiChk.setToolTipText("Reconstructs only the rectangle selected on the current image, much faster than the full plane for small regions. At zoom 1 the values are the same pixels of the full plane; a zoomed region adds every hologram sample, so its values differ from the full plane.");
+        roiChk.setMargin(new java.awt.Insets(0, 0, 0, 0));
+
+        zoomLabel.setText("Zoom:");
+
+        zoomField.setText("" + roiZoom);
+        zoomField.setToolTipText("Divides the output pixel size inside the region, between 1 and 16.");
+        zoomField.setMaximumSize(new java.awt.Dimension(59, 20));
+        zoomField.setMinimumSize(new java.awt.Dimension(59, 20));
+        zoomField.addFocusListener(new java.awt.event.FocusAdapter() {
+            public void focusGained(java.awt.event.FocusEvent evt) {
+                textFieldFocusGained(evt);
+            }
+        });
+
+        javax.swing.GroupLayout roiPanelLayout = new javax.swing.GroupLayout(roiPanel);
+        roiPanel.setLayout(roiPanelLayout);
+        roiPanelLayout.setHorizontalGroup(
+            roiPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(roiPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(roiPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(roiChk)
+                    .addGroup(roiPanelLayout.createSequentialGroup()
+                        .addComponent(zoomLabel)
+                        .addGap(75, 75, 75)
+                        .addComponent(zoomField, javax.swing.GroupLayout.PREFERRED_SIZE, 59, javax.swing.GroupLayout.PREFERRED_SIZE)))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+        roiPanelLayout.setVerticalGroup(
+            roiPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(roiPanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(roiChk)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(roiPanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(zoomLabel)
+                    .addComponent(zoomField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap(javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
+        );
+
+        applyPerformanceBtn.setText("Apply");
+        applyPerformanceBtn.setMaximumSize(new java.awt.Dimension(70, 23));
+        applyPerformanceBtn.setMinimumSize(new java.awt.Dimension(70, 23));
+        applyPerformanceBtn.setPreferredSize(new java.awt.Dimension(70, 23));
+        applyPerformanceBtn.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                applyPerformanceBtnActionPerformed(evt);
+            }
+        });
+
+        javax.swing.GroupLayout performancePanelLayout = new javax.swing.GroupLayout(performancePanel);
+        performancePanel.setLayout(performancePanelLayout);
+        performancePanelLayout.setHorizontalGroup(
+            performancePanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(performancePanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addGroup(performancePanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addGroup(javax.swing.GroupLayout.Alignment.TRAILING, performancePanelLayout.createSequentialGroup()
+                        .addGap(124, 124, 124)
+                        .addComponent(applyPerformanceBtn, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(performancePanelLayout.createSequentialGroup()
+                        .addGroup(performancePanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                            .addComponent(paddingPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                            .addComponent(memoryPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                            .addComponent(roiPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                        .addGap(0, 0, Short.MAX_VALUE)))
+                .addContainerGap())
+        );
+        performancePanelLayout.setVerticalGroup(
+            performancePanelLayout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+            .addGroup(performancePanelLayout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(paddingPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(memoryPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(roiPanel, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE)
+                .addComponent(applyPerformanceBtn, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
+                .addContainerGap())
+        );
+
+        settingsPane.addTab("Performance", performancePanel);
+
         cancelBtn.setText("Cancel");
         cancelBtn.setMaximumSize(new java.awt.Dimension(70, 23));
         cancelBtn.setMinimumSize(new java.awt.Dimension(70, 23));
@@ -868,6 +1121,45 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
         parent.updateScalingPrefs();
     }//GEN-LAST:event_applyScalingBtnActionPerformed
 
+    private void applyPerformanceBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_applyPerformanceBtnActionPerformed
+        try {
+            float factor = Float.parseFloat(padFactorField.getText());
+
+            if (factor < PaddingPlanner.MIN_PAD_FACTOR || factor > PaddingPlanner.MAX_PAD_FACTOR) {
+                JOptionPane.showMessageDialog(this, "Pad factor must be between 1 and 2.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            int memory = Integer.parseInt(batchMemoryField.getText());
+
+            if (memory < 0) {
+                JOptionPane.showMessageDialog(this, "Batch memory can not be negative.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            float zoom = Float.parseFloat(zoomField.getText());
+
+            if (zoom < 1 || zoom > 16) {
+                JOptionPane.showMessageDialog(this, "Zoom must be between 1 and 16.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+
+            pref.putFloat(REC_PAD_FACTOR, factor);
+            pref.putBoolean(REC_LARGE_FIELD, largeFieldChk.isSelected());
+            pref.putBoolean(REC_OUT_OF_CORE, outOfCoreChk.isSelected());
+            pref.putInt(REC_BATCH_MEMORY, memory);
+            pref.putBoolean(REC_BATCH_ON_DISK, batchOnDiskChk.isSelected());
+            pref.putBoolean(REC_BATCH_LAZY, batchLazyChk.isSelected());
+            pref.putBoolean(REC_ROI_ENABLED, roiChk.isSelected());
+            pref.putFloat(REC_ROI_ZOOM, zoom);
+        } catch (NumberFormatException exc) {
+            JOptionPane.showMessageDialog(this, "Please insert a valid number.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+
+        parent.updatePerformancePrefs();
+    }//GEN-LAST:event_applyPerformanceBtnActionPerformed
+
     private void rstDialogsBtnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_rstDialogsBtnActionPerformed
 //       pref.putBoolean(SHOW_FREQUENCIES_DIALOG, true);
     }//GEN-LAST:event_rstDialogsBtnActionPerformed
@@ -876,6 +1168,7 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
         applyUnitsBtnActionPerformed(null);
         applyPropagationPanelActionPerformed(null);
         applyScalingBtnActionPerformed(null);
+        applyPerformanceBtnActionPerformed(null);
 
         setVisible(false);
         dispose();
@@ -914,12 +1207,17 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JCheckBox amplitudeByteChk;
     private javax.swing.JCheckBox amplitudeLogChk;
+    private javax.swing.JButton applyPerformanceBtn;
     private javax.swing.JButton applyPropagationPanel;
     private javax.swing.JButton applyScalingBtn;
     private javax.swing.JButton applyUnitsBtn;
     private javax.swing.JTextField averageDimensionField;
     private javax.swing.JRadioButton averageRadio;
     private javax.swing.ButtonGroup batchGroup;
+    private javax.swing.JTextField batchMemoryField;
+    private javax.swing.JCheckBox batchLazyChk;
+    private javax.swing.JLabel batchMemoryLabel;
+    private javax.swing.JCheckBox batchOnDiskChk;
     private javax.swing.JPanel batchPanel;
     private javax.swing.JTextField borderWidthField;
     private javax.swing.JLabel borderWidthLabel;
@@ -936,10 +1234,17 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
     private javax.swing.JCheckBox intensityLogChk;
     private javax.swing.JComboBox lambdaCombo;
     private javax.swing.JLabel lambdaLabel;
+    private javax.swing.JCheckBox largeFieldChk;
     private javax.swing.JPanel logPanel;
+    private javax.swing.JPanel memoryPanel;
     private javax.swing.JRadioButton noneRadio;
     private javax.swing.JRadioButton numericalRadio;
     private javax.swing.JButton okBtn;
+    private javax.swing.JCheckBox outOfCoreChk;
+    private javax.swing.JTextField padFactorField;
+    private javax.swing.JLabel padFactorLabel;
+    private javax.swing.JPanel paddingPanel;
+    private javax.swing.JPanel performancePanel;
     private javax.swing.JComboBox outputSizeCombo;
     private javax.swing.JLabel outputSizeLabel;
     private javax.swing.JCheckBox phaseByteChk;
@@ -948,6 +1253,8 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
     private javax.swing.JCheckBox realByteChk;
     private javax.swing.JComboBox reconstructionCombo;
     private javax.swing.JLabel reconstructionLabel;
+    private javax.swing.JCheckBox roiChk;
+    private javax.swing.JPanel roiPanel;
     private javax.swing.JButton rstDialogsBtn;
     private javax.swing.JPanel scalingPanel;
     private javax.swing.JTabbedPane settingsPane;
@@ -958,5 +1265,7 @@ public class ReconstructionSettingsFrame extends javax.swing.JFrame implements P
     private javax.swing.JPanel unitsPanel;
     private javax.swing.JTextField warningField;
     private javax.swing.JLabel warningLabel;
+    private javax.swing.JTextField zoomField;
+    private javax.swing.JLabel zoomLabel;
     // End of variables declaration//GEN-END:variables
 }
@@ -20,8 +20,19 @@ import ij.measure.Calibration;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Cursor;
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.concurrent.ExecutionException;
 import javax.swing.SwingWorker;
+import unal.od.dlhm.diffraction.ComplexField;
+import unal.od.dlhm.diffraction.FftPlanCache;
 import unal.od.dlhm.diffraction.KirchhoffHelmholtz;
+import unal.od.dlhm.diffraction.OutputExtractor;
+import unal.od.dlhm.diffraction.PaddingPlanner;
+import unal.od.dlhm.diffraction.PropagatorCache;
+import unal.od.dlhm.diffraction.RegionTransform;
+import unal.od.dlhm.diffraction.TransferFunction;
+import unal.od.dlhm.diffraction.Workspace;
 import unal.od.jdiffraction.cpu.utils.ArrayUtils;
 
 /**
@@ -40,16 +51,34 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
     private float lambda, z, L, dx, dy, dxOut, dyOut;
     private float borderWidth;
     private int averageZoneSize;
+    private float padFactor = PaddingPlanner.DEFAULT_PAD_FACTOR;
+    private boolean largeField;
+    private boolean outOfCore;
+
+    //region of the output plane, null for the full plane
+    private Rectangle roi;
+    private float zoom = 1;
+
+    //propagator of the previous +/- step, it is stepped to z instead of
+    //calculating a new one
+    private KirchhoffHelmholtz previous;
+    private float step;
 
     //hologram field
-    private float[][] hologram, interpolatedField, outputField;
+    private float[][] hologram;
+    private float[][] inputHologram;
+    private int contrastType;
+    private ComplexField interpolatedField, outputField;
     private boolean interpolated;
 
     //Reference & Hologram for phase reconstruction
     private float[][] referencePhase;
     private float[][] hologramPhase;
-    private float[][] interpolatedHologram, interpolatedReference;
-    private float[][] outputFieldHologram, outputFieldReference, outputFieldPhase;
+    private ComplexField interpolatedHologram, interpolatedReference;
+    private ComplexField outputFieldHologram, outputFieldReference;
+
+    //finished outputs, null if not selected
+    private ImageProcessor phaseIp, amplitudeIp, intensityIp, realIp, imaginaryIp;
 
     private KirchhoffHelmholtz propagator;
 
@@ -109,62 +138,158 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
         //calibration
         cal = parent.getCalibration();
 
-        //creates the propagator object
-        propagator = new KirchhoffHelmholtz(M, N, lambda, z, L, dx, dy, dxOut, dyOut);
+        //gets the propagator object, reusing the kernels if this geometry
+        //was already used
+        FftPlanCache plans = FftPlanCache.getInstance();
+        int misses = plans.getMisses();
+
+        if (step == 0) {
+            propagator = PropagatorCache.getInstance().getKirchhoffHelmholtz(M,
+                    N, lambda, z, L, dx, dy, dxOut, dyOut, padFactor);
+        } else {
+            //stepped propagators are not shared, so they are kept out of the
+            //cache
+            TransferFunction transfer = PropagatorCache.getInstance()
+                    .getTransferFunction(M, N, lambda, L, dx, dy, dxOut, dyOut,
+                            padFactor);
+
+            if (previous != null && previous.getTransferFunction() == transfer
+                    && Math.abs(previous.getZ() + step - z) <= 1e-3f * Math.abs(step)) {
+                propagator = previous;
+                propagator.stepZ(step);
+            } else {
+                propagator = new KirchhoffHelmholtz(transfer, z);
+            }
+        }
 
-        if (phaseSelected && hasReference) {
-            //Correr para holo
+        parent.updateLog(false, "\n" + plans.describe(misses));
 
-            if (!interpolated) {
-                if (filteringEnabled) {
-                    hologramPhase = cosineFilter(hologramPhase);
-                    referencePhase = cosineFilter(referencePhase);
-                }
+        //chirp-z transform of the selected region
+        RegionTransform region = null;
+        if (roi != null) {
+            if (zoom == 1) {
+                //same values as the pixels of the full plane
+                region = new RegionTransform(propagator.getTransferFunction(),
+                        roi.x, roi.y, roi.width, roi.height);
+            } else {
+                int M2 = (M - 1) / 2;
+                int N2 = (N - 1) / 2;
 
-                interpolatedHologram = propagator.interpolate(hologramPhase);
-                interpolatedReference = propagator.interpolate(referencePhase);
+                //the first sample is centered in the first sub-pixel
+                float xStart = (roi.x - M2 - 0.5f + 0.5f / zoom) * dxOut;
+                float yStart = (roi.y - N2 - 0.5f + 0.5f / zoom) * dyOut;
 
-                parent.setInterpolatedHologramAndReference(interpolatedHologram, interpolatedReference);
+                region = new RegionTransform(propagator.getTransferFunction(),
+                        xStart, yStart, Math.round(roi.width * zoom),
+                        Math.round(roi.height * zoom), dxOut / zoom,
+                        dyOut / zoom);
             }
 
-            //copies the interpolated field into a new array for the output field
-            outputFieldHologram = new float[M][2 * N];
-            outputFieldReference = new float[M][2 * N];
+            parent.updateLog(false, "\nRegion: " + region.getWidth() + " x "
+                    + region.getHeight() + " at (" + roi.x + ", " + roi.y
+                    + "), zoom " + zoom);
 
-            for (int i = 0; i < M; i++) {
-                System.arraycopy(interpolatedHologram[i], 0, outputFieldHologram[i], 0, 2 * N);
-                System.arraycopy(interpolatedReference[i], 0, outputFieldReference[i], 0, 2 * N);
+            if (zoom != 1) {
+                parent.updateLog(false, "\nThe zoomed region adds every"
+                        + " hologram sample, its values differ from the full"
+                        + " plane.");
+
+                //the zoomed region is not an interpolation of the full plane,
+                //its images say so
+                namesSuffix = "; ROI" + namesSuffix;
             }
 
-            propagator.diffract(outputFieldHologram);
-            propagator.diffract(outputFieldReference);
+            //the output images use the pixel size of the region
+            cal = cal.copy();
+            cal.pixelWidth /= zoom;
+            cal.pixelHeight /= zoom;
+        }
+
+        //work buffers shared by the diffract calls of this reconstruction
+        Workspace workspace = outOfCore
+                ? new Workspace(new File(System.getProperty("java.io.tmpdir")))
+                : new Workspace(largeField);
 
+        //the large-field mode needs sun.misc.Cleaner
+        if (largeField && !outOfCore && !Workspace.isLargeFieldAvailable()) {
+            parent.updateLog(false, "\nOff-heap buffers unavailable on this"
+                    + " JVM, using heap.");
         }
 
-        if (amplitudeSelected || intensitySelected || realSelected || imaginarySelected || (phaseSelected && !hasReference)) {
-            if (!interpolated) {
-                if (filteringEnabled) {
-                    hologram = cosineFilter(hologram);
+        try {
+            if (phaseSelected && hasReference) {
+                //Correr para holo
+
+                if (!interpolated) {
+                    if (filteringEnabled) {
+                        hologramPhase = cosineFilter(hologramPhase);
+                        referencePhase = cosineFilter(referencePhase);
+                    }
+
+                    interpolatedHologram = propagator.interpolate(hologramPhase);
+                    interpolatedReference = propagator.interpolate(referencePhase);
+
+                    parent.setInterpolatedHologramAndReference(interpolatedHologram, interpolatedReference);
                 }
 
-                interpolatedField = propagator.interpolate(hologram);
-                parent.setInterpolatedField(interpolatedField);
-            }
+                //copies the interpolated field into a new array for the output field
+                outputFieldHologram = interpolatedHologram.copy();
+                outputFieldReference = interpolatedReference.copy();
+
+                if (region != null) {
+                    outputFieldHologram = propagator.diffract(outputFieldHologram, region);
+                    outputFieldReference = propagator.diffract(outputFieldReference, region);
+                } else {
+                    propagator.diffractWithoutOutputPhase(new ComplexField[]{
+                        outputFieldHologram, outputFieldReference}, workspace);
+                }
 
-            //copies the interpolated field into a new array for the output field
-            outputField = new float[M][2 * N];
-            for (int i = 0; i < M; i++) {
-                System.arraycopy(interpolatedField[i], 0, outputField[i], 0, 2 * N);
             }
 
-            propagator.diffract(outputField);
+            if (amplitudeSelected || intensitySelected || realSelected || imaginarySelected || (phaseSelected && !hasReference)) {
+                if (!interpolated) {
+                    if (inputHologram != null) {
+                        applyContrast();
+                    }
+
+                    if (filteringEnabled) {
+                        hologram = cosineFilter(hologram);
+                    }
+
+                    interpolatedField = propagator.interpolate(hologram);
+                    parent.setInterpolatedField(interpolatedField);
+                }
+
+                //copies the interpolated field into a new array for the output field
+                outputField = interpolatedField.copy();
+
+                if (region != null) {
+                    outputField = propagator.diffract(outputField, region);
+                } else {
+                    propagator.diffractWithoutOutputPhase(
+                            new ComplexField[]{outputField}, workspace);
+                }
+            }
+        } finally {
+            //deletes the scratch file of the out-of-core mode, also when the
+            //propagation fails
+            workspace.dispose();
         }
+
+        //the output plane phase is applied while extracting the outputs, the
+        //region already has it
+        OutputExtractor extractor = (region != null)
+                ? new OutputExtractor(region.getWidth(), region.getHeight())
+                : new OutputExtractor(propagator.getTransferFunction());
+
+        createOutputs(extractor);
         return null;
     }
 
     @Override
     protected void done() {
         if (isCancelled()) {
+            parent.setStepPropagator(null);
             parent.setCursor(Cursor.getDefaultCursor());
             parent.enableAfterPropagationOpt(true);
 
@@ -174,50 +299,85 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
             return;
         }
 
-//        ImagePlus imp2 = new ImagePlus("Amplitude; z = " + parameters[3] + names,
-//                    amplitudeByteSelected ? ip2.convertToByteProcessor() : ip2);
-        if (phaseSelected && hasReference) {
+        try {
+            get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exc) {
+            //a stepped propagator may have been left halfway, it is not
+            //reused
+            Throwable cause = exc.getCause();
+            while (cause instanceof ExecutionException
+                    && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
 
-            outputFieldPhase = new float[M][2 * N];
+            parent.setStepPropagator(null);
+            parent.setCursor(Cursor.getDefaultCursor());
+            parent.enableAfterPropagationOpt(true);
 
-            for (int i = 0; i < M; i++) {
-                for (int j = 0; j < N; j++) {
-                    float a = outputFieldHologram[i][2 * j];
-                    float b = outputFieldHologram[i][2 * j + 1];
-                    float c = outputFieldReference[i][2 * j];
-                    float d = outputFieldReference[i][2 * j + 1];
-                    outputFieldPhase[i][2 * j] = (a * c + b * d) / (c * c + d * d);
-                    outputFieldPhase[i][2 * j + 1] = (b * c - a * d) / (c * c + d * d);
-                }
-            }
-            float[][] phase = ArrayUtils.phase(outputFieldPhase);
+            parent.updateLog(true,
+                    "\nCould not complete the reconstruction: " + cause);
 
-            ImageProcessor ip = new FloatProcessor(phase);
-            if (phaseByteSelected) {
-                ip = ip.convertToByteProcessor();
-            }
+            return;
+        }
+
+        //the images were calculated in the background, here they are only
+        //shown
+        show("Phase", phaseIp);
+        show("Amplitude", amplitudeIp);
+        show("Intensity", intensityIp);
+        show("Real", realIp);
+        show("Imaginary", imaginaryIp);
 
-            ImagePlus imp = new ImagePlus("Phase" + namesSuffix, ip);
-            imp.setCalibration(cal);
-            imp.show();
-        } else if (phaseSelected) {
-            float[][] phase = ArrayUtils.phase(outputField);
+        //the next +/- step can continue from this propagator
+        parent.setStepPropagator(step == 0 ? null : propagator);
 
-            ImageProcessor ip = new FloatProcessor(phase);
+        parent.setCursor(Cursor.getDefaultCursor());
+        parent.enableAfterPropagationOpt(true);
+    }
+
+    /**
+     * Extracts the selected outputs and applies their log and 8 bit scaling.
+     * Runs in the background, so done() only has to show the images.
+     *
+     * @param extractor extractor for the propagated fields
+     */
+    private void createOutputs(OutputExtractor extractor) {
+        //no field is propagated when no output is selected
+        ComplexField output = (outputField != null) ? outputField
+                : outputFieldHologram;
+        int width = (output == null) ? 0 : output.getWidth();
+        int height = (output == null) ? 0 : output.getHeight();
+
+        //the outputs are written straight into the pixel arrays
+        float[] phase = phaseSelected ? new float[width * height] : null;
+        float[] amplitude = amplitudeSelected ? new float[width * height] : null;
+        float[] intensity = intensitySelected ? new float[width * height] : null;
+        float[] real = realSelected ? new float[width * height] : null;
+        float[] imaginary = imaginarySelected ? new float[width * height] : null;
+
+        if (phaseSelected && hasReference) {
+            extractor.extract(outputFieldHologram, outputFieldReference, phase,
+                    null, null, null, null);
+        }
+
+        if (outputField != null) {
+            extractor.extract(outputField, null, hasReference ? null : phase,
+                    amplitude, intensity, real, imaginary);
+        }
+
+        if (phaseSelected) {
+            ImageProcessor ip = new FloatProcessor(width, height, phase);
             if (phaseByteSelected) {
                 ip = ip.convertToByteProcessor();
             }
 
-            ImagePlus imp = new ImagePlus("Phase" + namesSuffix, ip);
-            imp.setCalibration(cal);
-            imp.show();
-
+            phaseIp = ip;
         }
 
         if (amplitudeSelected) {
-            float[][] amplitude = ArrayUtils.modulus(outputField);
-
-            ImageProcessor ip = new FloatProcessor(amplitude);
+            ImageProcessor ip = new FloatProcessor(width, height, amplitude);
             if (amplitudeLogSelected) {
                 ip.log();
             }
@@ -225,15 +385,11 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
                 ip = ip.convertToByteProcessor();
             }
 
-            ImagePlus imp = new ImagePlus("Amplitude" + namesSuffix, ip);
-            imp.setCalibration(cal);
-            imp.show();
+            amplitudeIp = ip;
         }
 
         if (intensitySelected) {
-            float[][] intensity = ArrayUtils.modulusSq(outputField);
-
-            ImageProcessor ip = new FloatProcessor(intensity);
+            ImageProcessor ip = new FloatProcessor(width, height, intensity);
             if (intensityLogSelected) {
                 ip.log();
             }
@@ -241,46 +397,43 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
                 ip = ip.convertToByteProcessor();
             }
 
-            ImagePlus imp = new ImagePlus("Intensity" + namesSuffix, ip);
-            imp.setCalibration(cal);
-            imp.show();
+            intensityIp = ip;
         }
 
         if (realSelected) {
-            float[][] real = ArrayUtils.real(outputField);
-
-            ImageProcessor ip = new FloatProcessor(real);
+            ImageProcessor ip = new FloatProcessor(width, height, real);
             if (realByteSelected) {
                 ip = ip.convertToByteProcessor();
             }
 
-            ImagePlus imp = new ImagePlus("Real" + namesSuffix, ip);
-            imp.setCalibration(cal);
-            imp.show();
+            realIp = ip;
         }
 
         if (imaginarySelected) {
-            float[][] imaginary = ArrayUtils.imaginary(outputField);
-
-            ImageProcessor ip = new FloatProcessor(imaginary);
+            ImageProcessor ip = new FloatProcessor(width, height, imaginary);
             if (imaginaryByteSelected) {
                 ip = ip.convertToByteProcessor();
             }
 
-            ImagePlus imp = new ImagePlus("Imaginary" + namesSuffix, ip);
-            imp.setCalibration(cal);
-            imp.show();
+            imaginaryIp = ip;
+        }
+    }
+
+    private void show(String name, ImageProcessor ip) {
+        if (ip == null) {
+            return;
         }
 
-        parent.setCursor(Cursor.getDefaultCursor());
-        parent.enableAfterPropagationOpt(true);
+        ImagePlus imp = new ImagePlus(name + namesSuffix, ip);
+        imp.setCalibration(cal);
+        imp.show();
     }
 
     private float[][] generateSphericalFront(float max) {
         float[][] sphericalFront = new float[M][2 * N];
 
-        int M2 = M / 2 - 1;
-        int N2 = N / 2 - 1;
+        int M2 = (M - 1) / 2;
+        int N2 = (N - 1) / 2;
         float k = 2 * (float) Math.PI / lambda;
         float L2 = L * L;
 
@@ -410,9 +563,25 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
     }
 
     public void setHologram(float[][] hologram, int contrastType) {
-        this.hologram = new float[M][N];
+// PROBLEM AVG: PUT GUARD TO PREVENT ERROR
+        if (contrastType == 1 && averageZoneSize == 0) {
+            throw new IllegalStateException("Average zone size must be set before setting the hologram");
+        }
+
         this.hasReference = false;
 
+        //the contrast is applied in the background
+        this.inputHologram = hologram;
+        this.contrastType = contrastType;
+    }
+
+    /**
+     * Applies the selected contrast to the input hologram.
+     */
+    private void applyContrast() {
+        float[][] hologram = inputHologram;
+        this.hologram = new float[M][N];
+
         switch (contrastType) {
             case 0: //numerical
                 float max = ArrayUtils.max(hologram);
@@ -429,13 +598,6 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
                 // if the averageZoneSize is equal to 1 or is greater than
                 // the minimum size of the image just takes the average of all
                 // the image
-                
-// PROBLEM AVG: PUT GUARD TO PREVENT ERROR
-                if (averageZoneSize == 0) {
-                    throw new IllegalStateException("Average zone size must be set before setting the hologram");
-                }
-                
-
                 if (averageZoneSize == -1) { //average of all image
 
                     float average = average(hologram);
@@ -468,12 +630,12 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
         }
     }
 
-    public void setField(float[][] field) {
+    public void setField(ComplexField field) {
         interpolated = true;
         this.interpolatedField = field;
     }
 
-    public void setFieldHologramAndReference(float[][] hologram, float[][] reference) {
+    public void setFieldHologramAndReference(ComplexField hologram, ComplexField reference) {
         interpolated = true;
         this.interpolatedHologram = hologram;
         this.interpolatedReference = reference;
@@ -526,6 +688,19 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
         this.intensityLogSelected = intensityLogSelected;
     }
 
+    /**
+     * Sets the propagator used by the previous +/- step and the step to the
+     * current distance. The step is only applied if the geometry did not
+     * change; otherwise a new propagator is created.
+     *
+     * @param previous propagator of the previous step, can be null
+     * @param step distance step
+     */
+    public void setStep(KirchhoffHelmholtz previous, float step) {
+        this.previous = previous;
+        this.step = step;
+    }
+
     public void setBorderWidth(float borderWidth) {
         if (borderWidth < 0.5) {
             borderWidth = 0.5f;
@@ -535,6 +710,30 @@ public class ReconstructionWorker extends SwingWorker<Void, Void> {
         filteringEnabled = true;
     }
 
+    public void setPadFactor(float padFactor) {
+        this.padFactor = padFactor;
+    }
+
+    public void setLargeField(boolean largeField) {
+        this.largeField = largeField;
+    }
+
+    public void setOutOfCore(boolean outOfCore) {
+        this.outOfCore = outOfCore;
+    }
+
+    /**
+     * Reconstructs only a region of the output plane, given in output pixels,
+     * with the pixel size divided by zoom.
+     *
+     * @param roi region, null for the full plane
+     * @param zoom zoom, not smaller than 1
+     */
+    public void setRegion(Rectangle roi, float zoom) {
+        this.roi = roi;
+        this.zoom = zoom;
+    }
+
     public void setAverageZoneSize(int size) {
         int min = Math.min(M, N);
 
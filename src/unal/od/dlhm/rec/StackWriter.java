@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.rec;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.plugin.FileInfoVirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the slices of a stack to a raw file as they are added, so the stack
+ * never has to be in memory. The slices are stored one after another without
+ * header, 8 bit or little-endian 32 bit float depending on the first slice.
+ * Once closed, the file is opened as an ImageJ virtual stack that reads the
+ * slices back on demand.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+class StackWriter {
+
+    private final File file;
+    private final int width, height;
+    private final List<String> labels;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+
+    //slice buffer, allocated with the first slice
+    private ByteBuffer buffer;
+    private boolean floatSlices;
+
+    /**
+     * Creates the writer, the file is created or truncated.
+     *
+     * @param file raw file
+     * @param width slices width
+     * @param height slices height
+     * @throws IOException if the file can not be created
+     */
+    StackWriter(File file, int width, int height) throws IOException {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+
+        labels = new ArrayList<String>();
+
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+    }
+
+    /**
+     * Appends a slice to the file. All the slices must be 8 bit or all of
+     * them 32 bit float.
+     *
+     * @param label slice label
+     * @param ip width x height slice
+     * @throws IOException if the slice can not be written
+     */
+    void addSlice(String label, ImageProcessor ip) throws IOException {
+        if (channel == null) {
+            throw new IllegalStateException("The writer is closed.");
+        }
+
+        if (ip.getWidth() != width || ip.getHeight() != height) {
+            throw new IllegalArgumentException("Slice size does not match the "
+                    + "stack size.");
+        }
+
+        boolean isFloat = ip instanceof FloatProcessor;
+        if (!isFloat && !(ip instanceof ByteProcessor)) {
+            throw new IllegalArgumentException("Only 8 bit and 32 bit float "
+                    + "slices can be written.");
+        }
+
+        if (buffer == null) {
+            floatSlices = isFloat;
+
+            int bytes = floatSlices ? 4 : 1;
+            buffer = ByteBuffer.allocateDirect(bytes * width * height);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (isFloat != floatSlices) {
+            throw new IllegalArgumentException("Slice type does not match the "
+                    + "stack type.");
+        }
+
+        buffer.clear();
+        if (floatSlices) {
+            buffer.asFloatBuffer().put((float[]) ip.getPixels());
+        } else {
+            buffer.put((byte[]) ip.getPixels());
+            buffer.flip();
+        }
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        labels.add(label);
+    }
+
+    /**
+     * Returns the number of slices written.
+     *
+     * @return slices
+     */
+    int getSize() {
+        return labels.size();
+    }
+
+    /**
+     * Returns the raw file.
+     *
+     * @return file
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Closes the file. Can be called more than once.
+     *
+     * @throws IOException if the file can not be closed
+     */
+    void close() throws IOException {
+        if (raf != null) {
+            channel = null;
+
+            RandomAccessFile closing = raf;
+            raf = null;
+            closing.close();
+        }
+    }
+
+    /**
+     * Closes the file and opens it as a virtual stack.
+     *
+     * @param title image title
+     * @return image, null if no slice was written
+     * @throws IOException if the file can not be closed
+     */
+    ImagePlus open(String title) throws IOException {
+        close();
+
+        if (labels.isEmpty()) {
+            return null;
+        }
+
+        FileInfo fi = new FileInfo();
+        fi.fileFormat = FileInfo.RAW;
+        fi.fileType = floatSlices ? FileInfo.GRAY32_FLOAT : FileInfo.GRAY8;
+        fi.intelByteOrder = true;
+        fi.width = width;
+        fi.height = height;
+        fi.nImages = labels.size();
+        fi.longOffset = 0;
+        fi.fileName = file.getName();
+        fi.directory = file.getParent() + File.separator;
+        fi.sliceLabels = labels.toArray(new String[labels.size()]);
+
+        return new ImagePlus(title, new FileInfoVirtualStack(fi, false));
+    }
+}
@@ -22,6 +22,10 @@ import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import javax.swing.SwingWorker;
 import unal.od.dlhm.diffraction.BluesteinHighNA;
+import unal.od.dlhm.diffraction.ComplexField;
+import unal.od.dlhm.diffraction.FftPlanCache;
+import unal.od.dlhm.diffraction.PropagatorCache;
+import unal.od.dlhm.diffraction.Workspace;
 import unal.od.jdiffraction.cpu.utils.ArrayUtils;
 
 /**
@@ -46,10 +50,10 @@ public class SimulationWorker extends SwingWorker<Void, Void> {
     private float dySample;
 
     //sample field
-    private float[][] field;
+    private ComplexField field;
 
-    //outputs
-    float[][] hologram, reference, contrast,
+    //outputs, in ImageJ pixel order
+    float[] hologram, reference, contrast,
             amplitude, phase, real, imaginary;
 
     //
@@ -100,50 +104,58 @@ public class SimulationWorker extends SwingWorker<Void, Void> {
         //gets the calibration object
         cal = parent.getCalibration();
 
-        //creates the bluestein object
-        propagator = new BluesteinHighNA(M, N, lambda, z, L,
-                dxSample, dySample, dxScreen, dyScreen);
+        //gets the bluestein object, reusing the kernels if this geometry was
+        //already used
+        FftPlanCache plans = FftPlanCache.getInstance();
+        int misses = plans.getMisses();
+
+        propagator = PropagatorCache.getInstance().getBluesteinHighNA(M, N,
+                lambda, z, L, dxSample, dySample, dxScreen, dyScreen);
+
+        parent.updateLog(false, "\n" + plans.describe(misses));
 
         //illuminates the field
-        float[][] complexRef = spherical();
+        ComplexField complexRef = spherical();
 
-        ArrayUtils.complexMultiplication2(field, complexRef);
+        field.multiply(complexRef);
 
-        //diffracts the field
-        propagator.diffract(field);
-//        hologram = ArrayUtils.modulusSq(field);
-        hologram = propagator.interpolate(ArrayUtils.modulusSq(field));
+        //diffracts the field, and the reference along with it when needed
+        Workspace workspace = new Workspace();
+        if (referenceSelected || contrastSelected) {
+            propagator.diffract(new ComplexField[]{field, complexRef}, workspace);
+        } else {
+            propagator.diffract(field, workspace);
+        }
+//        hologram = field.modulusSq();
+        hologram = propagator.interpolate(field.modulusSq());
 
         if (referenceSelected || contrastSelected) {
-            propagator.diffract(complexRef);
-            reference = propagator.interpolate(ArrayUtils.modulusSq(complexRef));
+            reference = propagator.interpolate(complexRef.modulusSq());
         }
 
         if (contrastSelected) {
-            contrast = new float[M][N];
+            contrast = new float[M * N];
 
-            for (int i = 0; i < M; i++) {
-                for (int j = 0; j < N; j++) {
-                    contrast[i][j] = hologram[i][j] - reference[i][j];
-                }
+            for (int k = 0; k < M * N; k++) {
+                contrast[k] = hologram[k] - reference[k];
             }
         }
 
         if (amplitudeSelected) {
-            amplitude = propagator.interpolate(ArrayUtils.modulus(field));
+            amplitude = propagator.interpolate(field.modulus());
         }
 
         if (phaseSelected) {
-            phase = propagator.interpolate(ArrayUtils.phase(field));
+            phase = propagator.interpolate(field.phase());
         }
 
         if (realSelected) {
-            real = propagator.interpolate(ArrayUtils.real(field));
+            real = propagator.interpolate(field.real());
             
         }
 
         if (imaginarySelected) {
-            imaginary = propagator.interpolate(ArrayUtils.imaginary(field));
+            imaginary = propagator.interpolate(field.imaginary());
         }
 
         return null;
@@ -162,42 +174,42 @@ public class SimulationWorker extends SwingWorker<Void, Void> {
         }
 
         if (hologramSelected) {
-            ImageProcessor ip = new FloatProcessor(hologram);
+            ImageProcessor ip = new FloatProcessor(M, N, hologram);
             ImagePlus imp = new ImagePlus("Hologram" + namesSuffix, ip);
             imp.setCalibration(cal);
             imp.show();
         }
 
         if (referenceSelected) {
-            ImageProcessor ip = new FloatProcessor(reference);
+            ImageProcessor ip = new FloatProcessor(M, N, reference);
             ImagePlus imp = new ImagePlus("Reference" + namesSuffix, ip);
             imp.setCalibration(cal);
             imp.show();
         }
 
         if (contrastSelected) {
-            ImageProcessor ip = new FloatProcessor(contrast);
+            ImageProcessor ip = new FloatProcessor(M, N, contrast);
             ImagePlus imp = new ImagePlus("Contrast hologram" + namesSuffix, ip);
             imp.setCalibration(cal);
             imp.show();
         }
 
         if (amplitudeSelected) {
-            ImageProcessor ip = new FloatProcessor(amplitude);
+            ImageProcessor ip = new FloatProcessor(M, N, amplitude);
             ImagePlus imp = new ImagePlus("Amplitude" + namesSuffix, ip);
             imp.setCalibration(cal);
             imp.show();
         }
 
         if (phaseSelected) {
-            ImageProcessor ip = new FloatProcessor(phase);
+            ImageProcessor ip = new FloatProcessor(M, N, phase);
             ImagePlus imp = new ImagePlus("Phase" + namesSuffix, ip);
             imp.setCalibration(cal);
             imp.show();
         }
 
         if (realSelected) {
-            ImageProcessor ip = new FloatProcessor(real);
+            ImageProcessor ip = new FloatProcessor(M, N, real);
             ImagePlus imp = new ImagePlus("Real" + namesSuffix, ip);
             imp.setCalibration(cal);
             imp.show();
@@ -206,7 +218,7 @@ public class SimulationWorker extends SwingWorker<Void, Void> {
 
 
         if (imaginarySelected) {
-            ImageProcessor ip = new FloatProcessor(imaginary);
+            ImageProcessor ip = new FloatProcessor(M, N, imaginary);
             ImagePlus imp = new ImagePlus("Imaginary" + namesSuffix, ip);
             imp.setCalibration(cal);
             imp.show();
@@ -217,11 +229,12 @@ public class SimulationWorker extends SwingWorker<Void, Void> {
         parent.updateLabel("Done!");
     }
 
-    private float[][] spherical() {
-        float[][] wave = new float[M][2 * N];
+    private ComplexField spherical() {
+        ComplexField field = new ComplexField(M, N);
+        float[] wave = field.getData();
 
-        int M2 = (M / 2) - 1;
-        int N2 = (N / 2) - 1;
+        int M2 = (M - 1) / 2;
+        int N2 = (N - 1) / 2;
 
         float z2 = z * z;
         float k = 2 * (float) Math.PI / lambda;
@@ -237,22 +250,22 @@ public class SimulationWorker extends SwingWorker<Void, Void> {
 
                 float factor = 1 / r;
 
-                wave[i][2 * j] = factor * (float) Math.cos(phase);
-                wave[i][2 * j + 1] = factor * (float) Math.sin(phase);
+                wave[2 * (j * M + i)] = factor * (float) Math.cos(phase);
+                wave[2 * (j * M + i) + 1] = factor * (float) Math.sin(phase);
             }
         }
 
-        return wave;
+        return field;
     }
 
     public void setField(float[][] amplitude, float[][] phase) {
 
         if (phase == null) {
-            field = ArrayUtils.complexAmplitude(0f, amplitude);
+            field = ComplexField.fromArray(ArrayUtils.complexAmplitude(0f, amplitude));
         } else if (amplitude == null) {
-            field = ArrayUtils.complexAmplitude(phase, 1f);
+            field = ComplexField.fromArray(ArrayUtils.complexAmplitude(phase, 1f));
         } else {
-            field = ArrayUtils.complexAmplitude(phase, amplitude);
+            field = ComplexField.fromArray(ArrayUtils.complexAmplitude(phase, amplitude));
         }
     }
 
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the termination of the {@link Autofocus} search.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class AutofocusTest {
+
+    private static final int SIZE = 64;
+
+    private static Autofocus createSearch() {
+        Random random = new Random(1);
+
+        float[] data = new float[2 * SIZE * SIZE];
+        for (int k = 0; k < data.length; k += 2) {
+            data[k] = 1 + random.nextFloat();
+        }
+
+        //distances in um
+        return new Autofocus(new ComplexField(SIZE, SIZE, data), 0.405f,
+                20000, 2.2f, 2.2f, FocusMetric.AMPLITUDE_VARIANCE);
+    }
+
+    /**
+     * A tolerance below the float spacing of the distances can not be
+     * reached, the search must still end.
+     */
+    @Test(timeout = 60000)
+    public void endsWithAToleranceBelowTheFloatSpacing() {
+        Autofocus search = createSearch();
+
+        float best = search.search(5000, 6000, 1e-4f);
+
+        assertTrue(best >= 5000 && best <= 6000);
+
+        //the coarse scan, the first two points and one point per step, from
+        //a bracket of 250 um down to a few float spacings
+        int steps = (int) Math.ceil(Math.log(4 * Math.ulp(6000f) / 250)
+                / Math.log((Math.sqrt(5) - 1) / 2));
+        assertTrue(search.getEvaluations()
+                <= Autofocus.COARSE_PLANES + 2 + steps);
+    }
+
+    @Test(timeout = 60000)
+    public void stopsAtTheTolerance() {
+        Autofocus search = createSearch();
+
+        search.search(5000, 6000, 10);
+
+        //a bracket of 250 um shrinks below 10 um in 7 steps
+        assertTrue(search.getEvaluations() <= Autofocus.COARSE_PLANES + 2 + 7);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jtransforms.utils.ConcurrencyUtils;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that {@link ParallelUtils#parallelFor} covers the range and passes
+ * the failures of its chunks to the caller.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class ParallelUtilsTest {
+
+    private static final int N = 1000;
+
+    private int threads;
+
+    @Before
+    public void setUp() {
+        //several chunks even on a single core
+        threads = ConcurrencyUtils.getNumberOfThreads();
+        ConcurrencyUtils.setNumberOfThreads(4);
+    }
+
+    @After
+    public void tearDown() {
+        ConcurrencyUtils.setNumberOfThreads(threads);
+    }
+
+    @Test
+    public void runsEveryIndexOnce() {
+        final AtomicInteger[] counts = new AtomicInteger[N];
+        for (int i = 0; i < N; i++) {
+            counts[i] = new AtomicInteger();
+        }
+
+        ParallelUtils.parallelFor(N, new ParallelUtils.Loop() {
+
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    counts[i].incrementAndGet();
+                }
+            }
+        });
+
+        for (int i = 0; i < N; i++) {
+            assertEquals(1, counts[i].get());
+        }
+    }
+
+    /**
+     * The first chunk runs on a pool thread, its failure must reach the
+     * caller.
+     */
+    @Test
+    public void rethrowsTheFailureOfAPoolChunk() {
+        try {
+            ParallelUtils.parallelFor(N, new ParallelUtils.ChunkLoop() {
+
+                @Override
+                public void run(int chunk, int start, int end) {
+                    if (chunk == 0) {
+                        throw new IllegalArgumentException("Chunk failed");
+                    }
+                }
+            });
+            fail("The failure of the chunk was not thrown.");
+        } catch (IllegalArgumentException exc) {
+            assertEquals("Chunk failed", exc.getMessage());
+        }
+    }
+
+    @Test
+    public void rethrowsAnError() {
+        try {
+            ParallelUtils.parallelFor(N, new ParallelUtils.ChunkLoop() {
+
+                @Override
+                public void run(int chunk, int start, int end) {
+                    if (chunk == 1) {
+                        throw new OutOfMemoryError("Chunk error");
+                    }
+                }
+            });
+            fail("The error of the chunk was not thrown.");
+        } catch (OutOfMemoryError err) {
+            assertEquals("Chunk error", err.getMessage());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.diffraction;
+
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Compares a {@link RegionTransform} with the same crop of the full
+ * reconstruction.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class RegionTransformTest {
+
+    private static final int SIZE = 64;
+
+    //region in output pixels
+    private static final int X = 24, Y = 20, W = 16, H = 24;
+
+    //geometry in um
+    private static final float LAMBDA = 0.405f, L = 20000, Z = 5000,
+            DX = 2.2f;
+
+    /**
+     * Random field, zero outside a centered square.
+     */
+    private static ComplexField createField(int support) {
+        Random random = new Random(1);
+
+        int start = (SIZE - support) / 2;
+        float[] data = new float[2 * SIZE * SIZE];
+        for (int j = start; j < start + support; j++) {
+            for (int i = start; i < start + support; i++) {
+                data[2 * (j * SIZE + i)] = random.nextFloat();
+                data[2 * (j * SIZE + i) + 1] = random.nextFloat();
+            }
+        }
+
+        return new ComplexField(SIZE, SIZE, data);
+    }
+
+    /**
+     * Returns the relative L2 difference between the region and the crop of
+     * the full reconstruction.
+     *
+     * @param onGrid whether the region is created as a crop of the full plane
+     * or with the coordinates and pixel size of a zoomed region
+     */
+    private static double cropDifference(ComplexField field, boolean onGrid) {
+        float dxOut = DX * Z / L;
+        KirchhoffHelmholtz propagator = new KirchhoffHelmholtz(SIZE, SIZE,
+                LAMBDA, Z, L, DX, DX, dxOut, dxOut);
+
+        ComplexField full = field.copy();
+        propagator.diffract(full);
+
+        int center = (SIZE - 1) / 2;
+        RegionTransform region = onGrid
+                ? new RegionTransform(propagator.getTransferFunction(), X, Y,
+                        W, H)
+                : new RegionTransform(propagator.getTransferFunction(),
+                        (X - center) * dxOut, (Y - center) * dxOut, W, H,
+                        dxOut, dxOut);
+        ComplexField crop = propagator.diffract(field.copy(), region);
+
+        float[] a = full.getData();
+        float[] b = crop.getData();
+
+        double difference = 0;
+        double norm = 0;
+        for (int v = 0; v < H; v++) {
+            for (int u = 0; u < W; u++) {
+                int k = 2 * ((Y + v) * SIZE + X + u);
+                int r = 2 * (v * W + u);
+
+                double re = a[k] - b[r];
+                double im = a[k + 1] - b[r + 1];
+                difference += re * re + im * im;
+                norm += a[k] * a[k] + a[k + 1] * a[k + 1];
+            }
+        }
+
+        return Math.sqrt(difference / norm);
+    }
+
+    /**
+     * The full reconstruction only adds the samples within half a field of
+     * each output pixel. With the field inside the central half, that covers
+     * all of it for the pixels of the region, and both must agree.
+     */
+    @Test
+    public void matchesTheCropWhenTheWindowCoversTheField() {
+        double difference = cropDifference(createField(SIZE / 2), true);
+        assertEquals(0, difference, 1e-4);
+    }
+
+    /**
+     * A region on the pixel grid applies the same window as the full
+     * reconstruction, so it is a crop of it with any field.
+     */
+    @Test
+    public void matchesTheCropWithAFullField() {
+        double difference = cropDifference(createField(SIZE), true);
+        assertEquals(0, difference, 1e-4);
+    }
+
+    /**
+     * A zoomed region adds every sample, with the field inside the central
+     * half it still agrees with the full reconstruction.
+     */
+    @Test
+    public void zoomedRegionMatchesWhenTheWindowCoversTheField() {
+        double difference = cropDifference(createField(SIZE / 2), false);
+        assertEquals(0, difference, 1e-4);
+    }
+
+    /**
+     * With a field filling the plane a zoomed region adds samples the full
+     * reconstruction leaves out, so it is not a crop of it.
+     */
+    @Test
+    public void zoomedRegionDiffersWithAFullField() {
+        double difference = cropDifference(createField(SIZE), false);
+        assertTrue("Difference " + difference, difference > 1e-2);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.rec;
+
+import ij.process.ImageProcessor;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests that the requests of a {@link PlaneCache} only wait for their own
+ * plane.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class PlaneCacheTest {
+
+    private static final int PLANES = 20;
+
+    /**
+     * Returns a new plane for each call and remembers it. A blocked source
+     * waits until released.
+     */
+    private static class TestSource implements PlaneCache.Source {
+
+        final Map<Integer, ImageProcessor[]> made
+                = new ConcurrentHashMap<Integer, ImageProcessor[]>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch released;
+
+        TestSource(boolean blocked) {
+            released = new CountDownLatch(blocked ? 1 : 0);
+        }
+
+        @Override
+        public ImageProcessor[] getPlane(int plane) {
+            started.countDown();
+
+            try {
+                released.await();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+
+            ImageProcessor[] ips = new ImageProcessor[5];
+            made.put(plane, ips);
+            return ips;
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void requestIsNotBlockedByAPrefetch() throws Exception {
+        TestSource source = new TestSource(false);
+        TestSource prefetchSource = new TestSource(true);
+        PlaneCache cache = new PlaneCache(source, prefetchSource, PLANES,
+                PlaneCache.MIN_CAPACITY);
+
+        try {
+            ImageProcessor[] ips = cache.getPlane(5);
+            assertSame(source.made.get(5), ips);
+
+            //the prefetch of the next plane is stuck
+            prefetchSource.started.await();
+
+            ips = cache.getPlane(4);
+            assertSame(source.made.get(4), ips);
+        } finally {
+            prefetchSource.released.countDown();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void requestWaitsForThePlaneBeingPrefetched() throws Exception {
+        TestSource source = new TestSource(false);
+        TestSource prefetchSource = new TestSource(true);
+        final PlaneCache cache = new PlaneCache(source, prefetchSource,
+                PLANES, PlaneCache.MIN_CAPACITY);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            cache.getPlane(5);
+
+            //the plane after the requested one is prefetched first
+            prefetchSource.started.await();
+
+            Future<ImageProcessor[]> request = executor.submit(
+                    new Callable<ImageProcessor[]>() {
+
+                @Override
+                public ImageProcessor[] call() {
+                    return cache.getPlane(6);
+                }
+            });
+
+            try {
+                request.get(200, TimeUnit.MILLISECONDS);
+                fail("The request did not wait for the prefetch.");
+            } catch (TimeoutException exc) {
+                //still being prefetched
+            }
+
+            prefetchSource.released.countDown();
+
+            ImageProcessor[] ips = request.get();
+            assertSame(prefetchSource.made.get(6), ips);
+            assertFalse(source.made.containsKey(6));
+        } finally {
+            prefetchSource.released.countDown();
+            executor.shutdownNow();
+        }
+    }
+}
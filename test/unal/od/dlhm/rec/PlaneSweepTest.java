@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Universidad Nacional de Colombia
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package unal.od.dlhm.rec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the ordering and the failures of {@link PlaneSweep}.
+ *
+ * @author: Pablo Piedrahita-Quintero <jppiedrahitaq@unal.edu.co>
+ * @author: Carlos Trujillo <catrujila@unal.edu.co>
+ * @author: Jorge Garcia-Sucerquia <jisucerquia@unal.edu.co>
+ */
+public class PlaneSweepTest {
+
+    private static final int PLANES = 40;
+    private static final int LANES = 3;
+    private static final int WINDOW = 2 * LANES;
+
+    /**
+     * Returns the plane index, or fails at one plane.
+     */
+    private static class IndexLane implements PlaneSweep.Lane<Integer> {
+
+        private final int failAt;
+        boolean disposed;
+
+        IndexLane(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void allocate() {
+        }
+
+        @Override
+        public Integer reconstruct(int plane) {
+            if (plane == failAt) {
+                throw new IllegalStateException("Lane failed at " + plane);
+            }
+
+            return plane;
+        }
+
+        @Override
+        public void dispose() {
+            disposed = true;
+        }
+    }
+
+    private static class ListWriter implements PlaneSweep.Writer<Integer> {
+
+        final List<Integer> written = new ArrayList<Integer>();
+
+        @Override
+        public void write(int plane, Integer value) {
+            assertEquals(plane, value.intValue());
+            written.add(value);
+        }
+    }
+
+    private static IndexLane[] lanes(int failAt) {
+        IndexLane[] lanes = new IndexLane[LANES];
+        for (int t = 0; t < LANES; t++) {
+            lanes[t] = new IndexLane(failAt);
+        }
+
+        return lanes;
+    }
+
+    @Test(timeout = 10000)
+    public void writesThePlanesInOrder() throws Exception {
+        IndexLane[] lanes = lanes(-1);
+        ListWriter writer = new ListWriter();
+
+        new PlaneSweep<Integer>(PLANES, WINDOW).run(lanes, writer);
+
+        assertEquals(PLANES, writer.written.size());
+        for (int p = 0; p < PLANES; p++) {
+            assertEquals(p, writer.written.get(p).intValue());
+        }
+
+        for (IndexLane lane : lanes) {
+            assertTrue(lane.disposed);
+        }
+    }
+
+    /**
+     * The other lanes get a window ahead of the failed plane and wait for it
+     * to be written, the sweep must not hang on them.
+     */
+    @Test(timeout = 10000)
+    public void rethrowsTheFailureOfALane() throws Exception {
+        int failAt = 4;
+        IndexLane[] lanes = lanes(failAt);
+        ListWriter writer = new ListWriter();
+
+        try {
+            new PlaneSweep<Integer>(PLANES, WINDOW).run(lanes, writer);
+            fail("The failure of the lane was not thrown.");
+        } catch (ExecutionException exc) {
+            assertTrue(exc.getCause() instanceof IllegalStateException);
+            assertEquals("Lane failed at " + failAt,
+                    exc.getCause().getMessage());
+        }
+
+        //the other lanes are stopped, some planes before the failed one can
+        //be missing
+        assertTrue(writer.written.size() <= failAt);
+        for (IndexLane lane : lanes) {
+            assertTrue(lane.disposed);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void rethrowsTheFailureOfTheWriter() throws Exception {
+        final int failAt = 7;
+        IndexLane[] lanes = lanes(-1);
+
+        try {
+            new PlaneSweep<Integer>(PLANES, WINDOW).run(lanes,
+                    new PlaneSweep.Writer<Integer>() {
+
+                @Override
+                public void write(int plane, Integer value) {
+                    if (plane == failAt) {
+                        throw new IllegalStateException("Writer failed");
+                    }
+                }
+            });
+            fail("The failure of the writer was not thrown.");
+        } catch (IllegalStateException exc) {
+            assertEquals("Writer failed", exc.getMessage());
+        }
+    }
+}